@@ -23,6 +23,12 @@ public class Constants {
 	 */
 	public static final String READY_ROUND = "READY_ROUND";
 
+	/**
+	 * Message kind of a readiness control message, see READY_ROUND. The
+	 * network only looks at the kind, the body is kept for readability.
+	 */
+	public static final int KIND_READY_ROUND = 1;
+
 	/**
 	 * Message body to signal end of messages in synchronous networks.
 	 * <p>
@@ -30,4 +36,35 @@ public class Constants {
 	 * sends a control message with sender Message.NETWORK and body PULSE_ROUND.
 	 */
 	public static final String PULSE_ROUND = "PULSE_ROUND";
+
+	/**
+	 * Message kind of an end of round control message, see PULSE_ROUND.
+	 * Processes only look at the kind, the body is kept for readability.
+	 */
+	public static final int KIND_PULSE_ROUND = 2;
+
+	/**
+	 * Message body of a process of a synchronous network asking to be pulsed
+	 * again, having declared itself quiescent (see Outbox.quiescent) and
+	 * having something to do before receiving any message, such as becoming a
+	 * candidate. It is sent with recipient Message.NETWORK, outside of any
+	 * round.
+	 */
+	public static final String WAKE_ROUND = "WAKE_ROUND";
+
+	/**
+	 * Message kind of a wake up control message, see WAKE_ROUND.
+	 */
+	public static final int KIND_WAKE_ROUND = 3;
+
+	/**
+	 * Message kind of a plain text message, whose content is in its body.
+	 */
+	public static final int KIND_TEXT = 0;
+
+	/**
+	 * First message kind available to algorithms for their own typed messages,
+	 * smaller values are reserved.
+	 */
+	public static final int KIND_FIRST_CUSTOM = 16;
 }
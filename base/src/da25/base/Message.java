@@ -1,6 +1,10 @@
 package da25.base;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A basic class representing a message.
@@ -9,14 +13,49 @@ import java.io.Serializable;
  * @author Casper Folkers
  * 
  */
-public class Message implements Serializable {
-	private static final long serialVersionUID = 1L;
+public class Message implements Externalizable {
+	private static final long serialVersionUID = 2L;
+
+	private static final int HAS_CLOCK = 1;
+	private static final int DELTA_CLOCK = 2;
+	private static final int HAS_BODY = 4;
+	private static final int HAS_FIELDS = 8;
 
 	public int sender;
 	public int recipient;
 	public VectorClock clock;
 	public String body;
 
+	/**
+	 * Kind of the message, telling how to interpret the typed fields. Plain
+	 * text messages have kind Constants.KIND_TEXT and only carry a body.
+	 */
+	public int kind = Constants.KIND_TEXT;
+
+	/**
+	 * Typed fields, their meaning depends on the kind of the message.
+	 */
+	public int first, second;
+
+	/**
+	 * If true, the clock only holds the entries changed since the previous
+	 * message of the same sender, all the others are implicitly unchanged.
+	 */
+	public boolean deltaClock = false;
+
+	/**
+	 * Number of the message among those sent by its sender, given by the
+	 * network while a trace is recorded or replayed (see Trace). It is local
+	 * to the network and never serialized.
+	 */
+	public int sequence = 0;
+
+	/**
+	 * Only meant for deserialization.
+	 */
+	public Message() {
+	}
+
 	public Message(int sender, int recipient, VectorClock clock, String body) {
 		this.sender = sender;
 		this.recipient = recipient;
@@ -24,11 +63,104 @@ public class Message implements Serializable {
 		this.body = body;
 	}
 
+	/**
+	 * Creates a typed message, with neither clock nor body.
+	 */
+	public Message(int sender, int recipient, int kind, int first, int second) {
+		this.sender = sender;
+		this.recipient = recipient;
+		this.kind = kind;
+		this.first = first;
+		this.second = second;
+	}
+
+	/**
+	 * Creates the copy of a broadcast message for one of its recipients. The
+	 * clock and the body are shared with this message.
+	 */
+	public Message forRecipient(int recipient) {
+		Message copy = new Message(sender, recipient, clock, body);
+		copy.deltaClock = deltaClock;
+		copy.kind = kind;
+		copy.first = first;
+		copy.second = second;
+		copy.sequence = sequence;
+		return copy;
+	}
+
+	/**
+	 * IDs and typed fields are written as varints, the clock is embedded
+	 * without any object header and the body is written as UTF-8 bytes.
+	 */
 	@Override
-	public String toString() {
+	public void writeExternal(ObjectOutput out) throws IOException {
+		int flags = 0;
+		if (clock != null) {
+			flags |= HAS_CLOCK;
+		}
+		if (deltaClock) {
+			flags |= DELTA_CLOCK;
+		}
+		if (body != null) {
+			flags |= HAS_BODY;
+		}
+		if (first != 0 || second != 0) {
+			flags |= HAS_FIELDS;
+		}
+
+		out.writeByte(flags);
+		Varints.write(out, sender);
+		Varints.write(out, recipient);
+		Varints.write(out, kind);
+		if ((flags & HAS_FIELDS) != 0) {
+			Varints.write(out, first);
+			Varints.write(out, second);
+		}
+
 		if (clock != null) {
-			return "[Message from " + sender + " to " + recipient + ", VC"
-					+ clock + ", saying '" + body + "']";
+			clock.write(out);
+		}
+
+		if (body != null) {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			Varints.write(out, bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		int flags = in.readUnsignedByte();
+		sender = Varints.read(in);
+		recipient = Varints.read(in);
+		kind = Varints.read(in);
+		if ((flags & HAS_FIELDS) != 0) {
+			first = Varints.read(in);
+			second = Varints.read(in);
+		}
+
+		if ((flags & HAS_CLOCK) != 0) {
+			clock = new VectorClock();
+			clock.read(in);
+		}
+		deltaClock = (flags & DELTA_CLOCK) != 0;
+
+		if ((flags & HAS_BODY) != 0) {
+			byte[] bytes = new byte[Varints.read(in)];
+			in.readFully(bytes);
+			body = new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (body == null && kind != Constants.KIND_TEXT) {
+			return "[Message from " + sender + " to " + recipient + ", kind "
+					+ kind + " (" + first + "," + second + ")]";
+		} else if (clock != null) {
+			return "[Message from " + sender + " to " + recipient + ", "
+					+ (deltaClock ? "delta VC" : "VC") + clock + ", saying '"
+					+ body + "']";
 		} else {
 			return "[Message from " + sender + " to " + recipient
 					+ ", saying '" + body + "']";
@@ -36,10 +168,10 @@ public class Message implements Serializable {
 	}
 
 	public String toString(int largestId) {
-		if (clock != null) {
-			return "[Message from " + sender + " to " + recipient + ", VC"
-					+ clock + ", saying '" + body
-					+ "']";
+		if (clock != null && body != null) {
+			return "[Message from " + sender + " to " + recipient + ", "
+					+ (deltaClock ? "delta VC" : "VC") + clock + ", saying '"
+					+ body + "']";
 		} else {
 			return toString();
 		}
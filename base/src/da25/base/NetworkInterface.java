@@ -59,6 +59,18 @@ public interface NetworkInterface extends Remote {
 	 */
 	public Set<Integer> getIds() throws RemoteException;
 
+	/**
+	 * Get the reference a process registered with, so that other processes
+	 * can send it messages directly.
+	 * 
+	 * @param id
+	 *            The ID of the process.
+	 * @return The reference, or null if the process can only be reached
+	 *         through the network.
+	 * @throws RemoteException
+	 */
+	public ProcessInterface getProcess(int id) throws RemoteException;
+
 	/**
 	 * This function is called by processes willing to send a message. The
 	 * message itself can be unicast or broadcast, depending on the value of its
@@ -69,4 +81,34 @@ public interface NetworkInterface extends Remote {
 	 * @throws RemoteException
 	 */
 	public void sendMessage(Message message) throws RemoteException;
+
+	/**
+	 * Sends the same message to several processes with a single call, each
+	 * recipient getting its own copy, as with broadcasts. The recipients
+	 * travel as a compact RecipientSet, and the network only creates the
+	 * copies when it dispatches them.
+	 * 
+	 * @param message
+	 *            The message to be sent, its recipient field is ignored.
+	 * @param recipients
+	 *            The recipients, the sender is skipped if present.
+	 * @throws RemoteException
+	 */
+	public void multicast(Message message, RecipientSet recipients)
+			throws RemoteException;
+
+	/**
+	 * Called by a process of a synchronous network at the end of its round:
+	 * sends all the messages of the round and signals that the process is
+	 * ready for the next one, with a single call, in place of one call per
+	 * message followed by a Constants.READY_ROUND control message.
+	 * <p>
+	 * An outbox marked quiescent tells a network with sparse rounds that the
+	 * process needs no pulse until it receives a message.
+	 * 
+	 * @param outbox
+	 *            The messages of the round, possibly none.
+	 * @throws RemoteException
+	 */
+	public void submitRound(Outbox outbox) throws RemoteException;
 }
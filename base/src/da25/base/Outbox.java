@@ -0,0 +1,103 @@
+package da25.base;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+/**
+ * The messages a process sends during a round of a synchronous network,
+ * handed over together with its readiness for the next round by
+ * NetworkInterface.submitRound().
+ */
+public class Outbox implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public final int sender;
+
+	private final ArrayList<Message> messages = new ArrayList<>();
+
+	/**
+	 * Recipients of every message, null for the messages sent with
+	 * sendMessage().
+	 */
+	private final ArrayList<RecipientSet> recipients = new ArrayList<>();
+
+	/**
+	 * Set by a process that will do nothing in the next rounds unless it
+	 * receives a message. A network with sparse rounds (see SyncNetwork) then
+	 * stops pulsing it until a message is delivered to it, or it sends a
+	 * control message with kind KIND_WAKE_ROUND.
+	 */
+	public boolean quiescent = false;
+
+	public Outbox(int sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * Adds a message with a single recipient, or a broadcast.
+	 */
+	public void send(Message message) {
+		messages.add(message);
+		recipients.add(null);
+	}
+
+	/**
+	 * Adds a multicast, see NetworkInterface.multicast().
+	 */
+	public void multicast(Message message, RecipientSet to) {
+		messages.add(message);
+		recipients.add(to);
+	}
+
+	public int size() {
+		return messages.size();
+	}
+
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	public Message getMessage(int index) {
+		return messages.get(index);
+	}
+
+	/**
+	 * @return The recipients of a multicast, or null if the message was added
+	 *         with send().
+	 */
+	public RecipientSet getRecipients(int index) {
+		return recipients.get(index);
+	}
+
+	public void clear() {
+		messages.clear();
+		recipients.clear();
+		quiescent = false;
+	}
+
+	/**
+	 * Sends the messages one by one, without signalling readiness.
+	 */
+	public void sendEach(NetworkInterface network) throws RemoteException {
+		for (int i = 0; i < messages.size(); i++) {
+			if (recipients.get(i) == null) {
+				network.sendMessage(messages.get(i));
+			} else {
+				network.multicast(messages.get(i), recipients.get(i));
+			}
+		}
+	}
+
+	/**
+	 * @return The message a process sends to signal it is ready for the next
+	 *         round. The network can't tell from it whether the process is
+	 *         quiescent, only submitRound() can.
+	 */
+	public Message readyMessage() {
+		Message ready = new Message(sender, Constants.NETWORK,
+				Constants.KIND_READY_ROUND, 0, 0);
+		ready.body = Constants.READY_ROUND;
+		return ready;
+	}
+}
@@ -2,6 +2,7 @@ package da25.base;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Interface defining a single process, running on a separate JVM and passing
@@ -29,6 +30,16 @@ public interface ProcessInterface extends Remote {
 	 */
 	public void recieveMessage(Message message) throws RemoteException;
 
+	/**
+	 * A batch of messages is received from the network, all at once. The
+	 * outcome must be the same as receiving them one by one, in the same
+	 * order, but a single remote call is needed.
+	 * 
+	 * @param messages
+	 * @throws RemoteException
+	 */
+	public void recieveMessages(List<Message> messages) throws RemoteException;
+
 	/**
 	 * Remote exit command, useful while testing
 	 */
@@ -0,0 +1,275 @@
+package da25.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * An immutable set of process IDs, the recipients of a multicast (see
+ * NetworkInterface.multicast()).
+ * <p>
+ * The IDs are kept sorted in an array. On the wire the set is written either
+ * as runs of consecutive IDs or as a bitset starting from the smallest ID,
+ * whichever is shorter: a contiguous block of any size takes a few bytes as
+ * runs, a scattered sample of a dense range one bit per ID of the range.
+ */
+public final class RecipientSet implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	private static final int RUNS = 0;
+	private static final int BITSET = 1;
+
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * Sorted IDs, without duplicates.
+	 */
+	private int[] ids;
+
+	/**
+	 * Only meant for deserialization.
+	 */
+	public RecipientSet() {
+		ids = NONE;
+	}
+
+	private RecipientSet(int[] ids) {
+		this.ids = ids;
+	}
+
+	/**
+	 * @return The set of the given IDs, which may be in any order and
+	 *         repeated. The array is copied.
+	 */
+	public static RecipientSet of(int... ids) {
+		int[] sorted = Arrays.copyOf(ids, ids.length);
+		Arrays.sort(sorted);
+
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (count == 0 || sorted[i] != sorted[count - 1]) {
+				sorted[count++] = sorted[i];
+			}
+		}
+
+		return new RecipientSet(count == sorted.length ? sorted : Arrays
+				.copyOf(sorted, count));
+	}
+
+	/**
+	 * @param ids
+	 *            IDs in increasing order, without duplicates. The array is not
+	 *            copied, so it must not change afterwards.
+	 */
+	public static RecipientSet ofSorted(int[] ids) {
+		return new RecipientSet(ids);
+	}
+
+	/**
+	 * @return The set of the IDs from first to last, both included.
+	 */
+	public static RecipientSet range(int first, int last) {
+		int[] ids = new int[Math.max(0, last - first + 1)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = first + i;
+		}
+		return new RecipientSet(ids);
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public boolean isEmpty() {
+		return ids.length == 0;
+	}
+
+	/**
+	 * @return The ID at a position, IDs being in increasing order.
+	 */
+	public int get(int index) {
+		return ids[index];
+	}
+
+	public boolean contains(int id) {
+		return Arrays.binarySearch(ids, id) >= 0;
+	}
+
+	/**
+	 * @return The IDs in increasing order, in a new array.
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(ids, ids.length);
+	}
+
+	/**
+	 * Writes the set in the shorter of its two encodings.
+	 * <p>
+	 * As runs, the set is made of the number of runs, then the distance of
+	 * every run from the end of the previous one (the first ID for the first
+	 * run) and its length minus one. As a bitset, it is made of the first ID,
+	 * the number of bytes and the bits of the IDs from the first one on.
+	 */
+	public void write(DataOutput out) throws IOException {
+		int runs = 0;
+		int runsSize = 0;
+		int end = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int start = ids[i];
+			while (i + 1 < ids.length && ids[i + 1] == ids[i] + 1) {
+				i++;
+			}
+			runsSize += Varints.size(runs == 0 ? start : start - end - 1)
+					+ Varints.size(ids[i] - start);
+			end = ids[i];
+			runs++;
+		}
+		runsSize += Varints.size(runs);
+
+		if (runs > 1) {
+			long bytes = ((long) ids[ids.length - 1] - ids[0] + 8) / 8;
+			if (bytes < runsSize
+					&& Varints.size(ids[0]) + Varints.size((int) bytes)
+							+ bytes < runsSize) {
+				writeBitset(out, (int) bytes);
+				return;
+			}
+		}
+
+		out.writeByte(RUNS);
+		Varints.write(out, runs);
+		runs = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int start = ids[i];
+			while (i + 1 < ids.length && ids[i + 1] == ids[i] + 1) {
+				i++;
+			}
+			Varints.write(out, runs == 0 ? start : start - end - 1);
+			Varints.write(out, ids[i] - start);
+			end = ids[i];
+			runs++;
+		}
+	}
+
+	private void writeBitset(DataOutput out, int bytes) throws IOException {
+		byte[] bits = new byte[bytes];
+		int first = ids[0];
+		for (int id : ids) {
+			int offset = id - first;
+			bits[offset >>> 3] |= 1 << (offset & 7);
+		}
+
+		out.writeByte(BITSET);
+		Varints.write(out, first);
+		Varints.write(out, bytes);
+		out.write(bits);
+	}
+
+	/**
+	 * Reads a set written by write().
+	 */
+	public static RecipientSet read(DataInput in) throws IOException {
+		int format = in.readUnsignedByte();
+		switch (format) {
+		case RUNS:
+			int runs = Varints.read(in);
+			int[] starts = new int[runs];
+			int[] lengths = new int[runs];
+			int total = 0;
+			for (int i = 0; i < runs; i++) {
+				int gap = Varints.read(in);
+				starts[i] = i == 0 ? gap : starts[i - 1] + lengths[i - 1] + gap;
+				lengths[i] = Varints.read(in) + 1;
+				total += lengths[i];
+			}
+
+			int[] ids = new int[total];
+			int position = 0;
+			for (int i = 0; i < runs; i++) {
+				for (int j = 0; j < lengths[i]; j++) {
+					ids[position++] = starts[i] + j;
+				}
+			}
+			return new RecipientSet(ids);
+		case BITSET:
+			int first = Varints.read(in);
+			byte[] bits = new byte[Varints.read(in)];
+			in.readFully(bits);
+
+			int count = 0;
+			for (byte b : bits) {
+				count += Integer.bitCount(b & 0xFF);
+			}
+			int[] members = new int[count];
+			int next = 0;
+			for (int offset = 0; offset < bits.length * 8; offset++) {
+				if ((bits[offset >>> 3] & (1 << (offset & 7))) != 0) {
+					members[next++] = first + offset;
+				}
+			}
+			return new RecipientSet(members);
+		default:
+			throw new IOException("Unknown recipient set format " + format);
+		}
+	}
+
+	/**
+	 * @return The set as written by write().
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			/*
+			 * This exception is never thrown, since the stream is in memory.
+			 */
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static RecipientSet fromBytes(byte[] bytes) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		ids = read(in).ids;
+	}
+
+	/**
+	 * Runs of consecutive IDs are shown as ranges, e.g. {1-4, 7}.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+		for (int i = 0; i < ids.length; i++) {
+			int start = ids[i];
+			while (i + 1 < ids.length && ids[i + 1] == ids[i] + 1) {
+				i++;
+			}
+			if (builder.length() > 1) {
+				builder.append(", ");
+			}
+			builder.append(start);
+			if (ids[i] != start) {
+				builder.append('-').append(ids[i]);
+			}
+		}
+		return builder.append('}').toString();
+	}
+}
@@ -1,44 +1,107 @@
 package da25.base;
 
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
 
-public class VectorClock implements Serializable {
-	private static final long serialVersionUID = 1L;
-	private HashMap<Integer, Integer> vector;
+/**
+ * A vector clock backed by a primitive array indexed by process ID.
+ * <p>
+ * The array grows on demand when an entry beyond its end is increased, while
+ * reading a missing entry simply yields zero. None of the methods allocate
+ * (except for growing and copying) and none of them take a monitor: callers
+ * sharing a clock between threads have to synchronize on it themselves, as
+ * BssProcess already does.
+ * <p>
+ * The serial form is not the one of the earlier clocks backed by a HashMap,
+ * so processes and networks built before this change can't exchange messages
+ * with the ones built after it.
+ */
+public class VectorClock implements Externalizable {
+	private static final long serialVersionUID = 3L;
+
+	/**
+	 * Initial capacity of an empty clock, enough for the test cases without
+	 * any reallocation.
+	 */
+	private static final int INITIAL_CAPACITY = 8;
+
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * Entries of the clock, the value for process ID i is stored at index i.
+	 */
+	private int[] vector;
+
+	/**
+	 * One past the largest index ever written, entries from here on are zero.
+	 */
+	private int length;
 
 	public VectorClock() {
-		vector = new HashMap<>();
+		vector = EMPTY;
+		length = 0;
 	}
 
 	public VectorClock(VectorClock vectorClock) {
-		vector = new HashMap<>(vectorClock.vector);
+		vector = Arrays.copyOf(vectorClock.vector, vectorClock.length);
+		length = vectorClock.length;
 	}
 
-	synchronized public void reset() {
-		vector.clear();
+	public void reset() {
+		Arrays.fill(vector, 0, length, 0);
+		length = 0;
 	}
 
-	synchronized public int get(int index) {
-		try {
-			return vector.get(index).intValue();
-		} catch (NullPointerException e) {
+	public int get(int index) {
+		if (index < 0 || index >= length) {
 			return 0;
 		}
+
+		return vector[index];
+	}
+
+	public void increase(int index) {
+		ensureLength(index + 1);
+		vector[index]++;
 	}
 
-	synchronized public void increase(int index) {
-		vector.put(index, get(index) + 1);
+	public void decrease(int index) {
+		ensureLength(index + 1);
+		vector[index]--;
 	}
 
-	synchronized public void decrease(int index) {
-		vector.put(index, get(index) - 1);
+	/**
+	 * Sets a single entry of the clock.
+	 */
+	public void set(int index, int value) {
+		ensureLength(index + 1);
+		vector[index] = value;
 	}
 
-	synchronized public boolean greaterEqual(VectorClock otherClock) {
-		for (int key : otherClock.vector.keySet()) {
-			if (get(key) < otherClock.get(key)) {
+	/**
+	 * @return One past the largest ID this clock holds an entry for.
+	 */
+	public int length() {
+		return length;
+	}
+
+	public boolean greaterEqual(VectorClock otherClock) {
+		int[] other = otherClock.vector;
+		int common = Math.min(length, otherClock.length);
+
+		for (int i = 0; i < common; i++) {
+			if (vector[i] < other[i]) {
+				return false;
+			}
+		}
+
+		for (int i = common; i < otherClock.length; i++) {
+			if (other[i] > 0) {
 				return false;
 			}
 		}
@@ -46,20 +109,88 @@ public class VectorClock implements Serializable {
 		return true;
 	}
 
+	/**
+	 * Takes the entry-wise maximum of this clock and the other one, storing
+	 * the result in this clock.
+	 */
+	public void merge(VectorClock otherClock) {
+		ensureLength(otherClock.length);
+
+		int[] other = otherClock.vector;
+		for (int i = 0; i < otherClock.length; i++) {
+			if (other[i] > vector[i]) {
+				vector[i] = other[i];
+			}
+		}
+	}
+
+	/**
+	 * Overwrites this clock with the content of the other one, reusing the
+	 * current array whenever it is large enough.
+	 */
+	public void copyFrom(VectorClock otherClock) {
+		ensureLength(otherClock.length);
+		System.arraycopy(otherClock.vector, 0, vector, 0, otherClock.length);
+		Arrays.fill(vector, otherClock.length, length, 0);
+		length = otherClock.length;
+	}
+
+	/**
+	 * Builds a sparse clock holding only the entries in which this clock
+	 * differs from the base one, all the others being left at zero.
+	 * <p>
+	 * Since entries only grow, the base can be rebuilt into this clock by
+	 * merging the returned difference into it.
+	 */
+	public VectorClock differenceFrom(VectorClock base) {
+		int differenceLength = 0;
+		for (int i = length - 1; i >= 0; i--) {
+			if (vector[i] != base.get(i)) {
+				differenceLength = i + 1;
+				break;
+			}
+		}
+
+		VectorClock difference = new VectorClock();
+		difference.ensureLength(differenceLength);
+		for (int i = 0; i < differenceLength; i++) {
+			if (vector[i] != base.get(i)) {
+				difference.vector[i] = vector[i];
+			}
+		}
+
+		return difference;
+	}
+
+	private void ensureLength(int newLength) {
+		if (newLength <= length) {
+			return;
+		}
+
+		if (newLength > vector.length) {
+			int capacity = Math.max(INITIAL_CAPACITY, vector.length * 2);
+			vector = Arrays.copyOf(vector, Math.max(capacity, newLength));
+		}
+
+		length = newLength;
+	}
+
 	@Override
-	synchronized public String toString() {
+	public String toString() {
 		return toStringCompact();
 	}
 
-	synchronized public String toStringPairs() {
+	public String toStringPairs() {
 		StringBuilder bld = new StringBuilder();
 		bld.append("(");
 
-		for (Entry<Integer, Integer> pair : vector.entrySet()) {
-			bld.append(pair.getKey());
-			bld.append('=');
-			bld.append(pair.getValue());
-			bld.append(',');
+		for (int i = 0; i < length; i++) {
+			if (vector[i] != 0) {
+				bld.append(i);
+				bld.append('=');
+				bld.append(vector[i]);
+				bld.append(',');
+			}
 		}
 
 		if (bld.length() > 1) {
@@ -70,18 +201,11 @@ public class VectorClock implements Serializable {
 		return bld.toString();
 	}
 
-	synchronized public String toStringCompact() {
-		int largestId = 0;
-		for (int key : vector.keySet()) {
-			if (key > largestId) {
-				largestId = key;
-			}
-		}
-
-		return toStringExtended(largestId);
+	public String toStringCompact() {
+		return toStringExtended(length - 1);
 	}
 
-	synchronized public String toStringExtended(int largestId) {
+	public String toStringExtended(int largestId) {
 		StringBuilder bld = new StringBuilder();
 		bld.append("(");
 
@@ -97,4 +221,71 @@ public class VectorClock implements Serializable {
 		bld.append(")");
 		return bld.toString();
 	}
+
+	/**
+	 * Only the meaningful prefix of the array is written, as varints. Clocks
+	 * with few non-zero entries (e.g. differences) are written as pairs of
+	 * index gap and value instead.
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		read(in);
+	}
+
+	/**
+	 * Writes the clock as writeExternal() does, so that Message can embed it
+	 * without any object header.
+	 */
+	void write(DataOutput out) throws IOException {
+		int nonZero = 0;
+		for (int i = 0; i < length; i++) {
+			if (vector[i] != 0) {
+				nonZero++;
+			}
+		}
+
+		if (nonZero * 2 < length) {
+			/*
+			 * The length is shifted left to make room for the sparse flag.
+			 */
+			Varints.write(out, length << 1 | 1);
+			Varints.write(out, nonZero);
+			int previous = 0;
+			for (int i = 0; i < length; i++) {
+				if (vector[i] != 0) {
+					Varints.write(out, i - previous);
+					Varints.write(out, vector[i]);
+					previous = i;
+				}
+			}
+		} else {
+			Varints.write(out, length << 1);
+			for (int i = 0; i < length; i++) {
+				Varints.write(out, vector[i]);
+			}
+		}
+	}
+
+	void read(DataInput in) throws IOException {
+		int header = Varints.read(in);
+		length = header >>> 1;
+		vector = length == 0 ? EMPTY : new int[length];
+		if ((header & 1) != 0) {
+			int nonZero = Varints.read(in);
+			int index = 0;
+			for (int i = 0; i < nonZero; i++) {
+				index += Varints.read(in);
+				vector[index] = Varints.read(in);
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				vector[i] = Varints.read(in);
+			}
+		}
+	}
 }
@@ -0,0 +1,30 @@
+package da25.base.log;
+
+import java.io.PrintStream;
+
+/**
+ * Default sink, printing every event as a line of the standard output, the
+ * way processes and networks always did.
+ */
+public class ConsoleSink implements EventSink {
+	private final PrintStream out;
+
+	public ConsoleSink(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(Event event) {
+		out.println(event.message());
+
+		Throwable throwable = event.throwable();
+		if (throwable != null) {
+			throwable.printStackTrace(out);
+		}
+	}
+
+	@Override
+	public void flush() {
+		out.flush();
+	}
+}
@@ -0,0 +1,88 @@
+package da25.base.log;
+
+/**
+ * A logged event, kept unformatted until the logging thread gets to it.
+ * <p>
+ * The arguments are only converted to strings then, so they must not be
+ * modified after being logged.
+ */
+public class Event {
+	public final int level;
+
+	/**
+	 * Wall clock time of the event, in milliseconds.
+	 */
+	public final long time;
+
+	/**
+	 * The text of the event, where every "{}" stands for the next argument.
+	 */
+	public final String format;
+
+	private final Object[] arguments;
+
+	Event(int level, String format, Object[] arguments) {
+		this.level = level;
+		this.time = System.currentTimeMillis();
+		this.format = format;
+		this.arguments = arguments;
+	}
+
+	/**
+	 * @return The number of arguments of the event.
+	 */
+	public int size() {
+		return arguments.length;
+	}
+
+	public Object get(int index) {
+		return arguments[index];
+	}
+
+	/**
+	 * @return The first argument not consumed by the format which is a
+	 *         Throwable, or null.
+	 */
+	public Throwable throwable() {
+		int placeholders = 0;
+		for (int i = format.indexOf("{}"); i >= 0; i = format.indexOf("{}",
+				i + 2)) {
+			placeholders++;
+		}
+
+		for (int i = placeholders; i < arguments.length; i++) {
+			if (arguments[i] instanceof Throwable) {
+				return (Throwable) arguments[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return The format with every placeholder replaced by its argument.
+	 */
+	public String message() {
+		if (arguments.length == 0) {
+			return format;
+		}
+
+		StringBuilder bld = new StringBuilder(format.length() + 32);
+		int start = 0;
+		int argument = 0;
+		int next;
+		while (argument < arguments.length
+				&& (next = format.indexOf("{}", start)) >= 0) {
+			bld.append(format, start, next);
+			bld.append(String.valueOf(arguments[argument++]));
+			start = next + 2;
+		}
+		bld.append(format, start, format.length());
+		return bld.toString();
+	}
+
+	@Override
+	public String toString() {
+		return EventLog.levelName(level) + " " + message();
+	}
+}
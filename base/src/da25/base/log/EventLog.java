@@ -0,0 +1,322 @@
+package da25.base.log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Level-gated event log shared by networks and processes.
+ * <p>
+ * Events are appended to a lock-free ring buffer and formatted and written to
+ * the sink by a background thread, so the threads logging them never wait for
+ * the standard output. Events below the current level are discarded before
+ * any allocation, callers only have to avoid building strings themselves:
+ * arguments are passed as they are and replace the "{}" in the format.
+ * <p>
+ * The level is read from the system property da25.log (off, error, info or
+ * trace, trace by default) and can be changed at any time. Pending events are
+ * written when the VM shuts down, even through System.exit().
+ */
+public final class EventLog {
+	public static final int OFF = 0;
+
+	/**
+	 * Failures, e.g. messages which could not be sent.
+	 */
+	public static final int ERROR = 1;
+
+	/**
+	 * Prompts, command feedback and protocol milestones (e.g. an election).
+	 */
+	public static final int INFO = 2;
+
+	/**
+	 * Every single message queued, forwarded, buffered or delivered.
+	 */
+	public static final int TRACE = 3;
+
+	/**
+	 * Number of slots of the ring buffer, a power of two. When it is full,
+	 * loggers wait for the logging thread rather than losing events.
+	 */
+	private static final int CAPACITY = 1 << 14;
+
+	private static final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(
+			CAPACITY);
+
+	/**
+	 * Sequence number of the next slot to be claimed by a logger.
+	 */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Sequence number of the next slot to be drained, only written while
+	 * holding drainLock.
+	 */
+	private static volatile long head = 0;
+
+	private static final ReentrantLock drainLock = new ReentrantLock();
+
+	private static volatile int level = parseLevel(System.getProperty(
+			"da25.log", "trace"));
+
+	private static volatile EventSink sink = new ConsoleSink(System.out);
+
+	/**
+	 * True while the logging thread is about to park, loggers must wake it up.
+	 */
+	private static volatile boolean sleeping = false;
+
+	private static final Thread drainer;
+
+	static {
+		drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (drain() == 0) {
+						sleeping = true;
+						if (slots.get((int) head & (CAPACITY - 1)) == null) {
+							LockSupport.parkNanos(TimeUnit.MILLISECONDS
+									.toNanos(100));
+						}
+						sleeping = false;
+					}
+				}
+			}
+		}, "Event log");
+		drainer.setDaemon(true);
+		drainer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}));
+	}
+
+	private EventLog() {
+	}
+
+	/**
+	 * @return True if events of the given level are currently recorded.
+	 */
+	public static boolean isEnabled(int eventLevel) {
+		return eventLevel <= level;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static void setLevel(int newLevel) {
+		level = newLevel;
+	}
+
+	/**
+	 * Replaces the sink events are written to, events already pending may be
+	 * written to either sink.
+	 */
+	public static void setSink(EventSink newSink) {
+		sink = newSink;
+	}
+
+	/**
+	 * @return The level with the given name, case insensitive.
+	 * @throws IllegalArgumentException
+	 *             The name is unknown.
+	 */
+	public static int parseLevel(String name) {
+		switch (name.toLowerCase()) {
+		case "off":
+			return OFF;
+		case "error":
+			return ERROR;
+		case "info":
+			return INFO;
+		case "trace":
+			return TRACE;
+		default:
+			throw new IllegalArgumentException("Unknown log level: " + name);
+		}
+	}
+
+	public static String levelName(int eventLevel) {
+		switch (eventLevel) {
+		case OFF:
+			return "off";
+		case ERROR:
+			return "error";
+		case INFO:
+			return "info";
+		default:
+			return "trace";
+		}
+	}
+
+	public static void log(int eventLevel, String format) {
+		if (eventLevel <= level) {
+			publish(new Event(eventLevel, format, new Object[0]));
+		}
+	}
+
+	public static void log(int eventLevel, String format, Object a) {
+		if (eventLevel <= level) {
+			publish(new Event(eventLevel, format, new Object[] { a }));
+		}
+	}
+
+	public static void log(int eventLevel, String format, Object a, Object b) {
+		if (eventLevel <= level) {
+			publish(new Event(eventLevel, format, new Object[] { a, b }));
+		}
+	}
+
+	public static void log(int eventLevel, String format, Object a, Object b,
+			Object c) {
+		if (eventLevel <= level) {
+			publish(new Event(eventLevel, format, new Object[] { a, b, c }));
+		}
+	}
+
+	public static void log(int eventLevel, String format, Object a, Object b,
+			Object c, Object d) {
+		if (eventLevel <= level) {
+			publish(new Event(eventLevel, format, new Object[] { a, b, c, d }));
+		}
+	}
+
+	public static void error(String format) {
+		log(ERROR, format);
+	}
+
+	public static void error(String format, Object a) {
+		log(ERROR, format, a);
+	}
+
+	public static void error(String format, Object a, Object b) {
+		log(ERROR, format, a, b);
+	}
+
+	public static void error(String format, Object a, Object b, Object c) {
+		log(ERROR, format, a, b, c);
+	}
+
+	public static void error(String format, Object a, Object b, Object c,
+			Object d) {
+		log(ERROR, format, a, b, c, d);
+	}
+
+	public static void info(String format) {
+		log(INFO, format);
+	}
+
+	public static void info(String format, Object a) {
+		log(INFO, format, a);
+	}
+
+	public static void info(String format, Object a, Object b) {
+		log(INFO, format, a, b);
+	}
+
+	public static void info(String format, Object a, Object b, Object c) {
+		log(INFO, format, a, b, c);
+	}
+
+	public static void info(String format, Object a, Object b, Object c,
+			Object d) {
+		log(INFO, format, a, b, c, d);
+	}
+
+	public static void trace(String format) {
+		log(TRACE, format);
+	}
+
+	public static void trace(String format, Object a) {
+		log(TRACE, format, a);
+	}
+
+	public static void trace(String format, Object a, Object b) {
+		log(TRACE, format, a, b);
+	}
+
+	public static void trace(String format, Object a, Object b, Object c) {
+		log(TRACE, format, a, b, c);
+	}
+
+	public static void trace(String format, Object a, Object b, Object c,
+			Object d) {
+		log(TRACE, format, a, b, c, d);
+	}
+
+	/**
+	 * Writes all the pending events on the calling thread before returning.
+	 * Gives up after a second if some logger never fills the slot it claimed.
+	 */
+	public static void flush() {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while ((drain() > 0 || head < tail.get())
+				&& System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+	}
+
+	private static void publish(Event event) {
+		long sequence;
+		while (true) {
+			sequence = tail.get();
+			if (sequence - head >= CAPACITY) {
+				LockSupport.unpark(drainer);
+				Thread.yield();
+			} else if (tail.compareAndSet(sequence, sequence + 1)) {
+				break;
+			}
+		}
+
+		slots.lazySet((int) sequence & (CAPACITY - 1), event);
+		if (sleeping) {
+			LockSupport.unpark(drainer);
+		}
+	}
+
+	/**
+	 * Writes the events published so far, stopping at the first claimed slot
+	 * not yet filled.
+	 * 
+	 * @return The number of events written.
+	 */
+	private static int drain() {
+		drainLock.lock();
+		try {
+			EventSink currentSink = sink;
+			int count = 0;
+			long next = head;
+			while (true) {
+				int index = (int) next & (CAPACITY - 1);
+				Event event = slots.get(index);
+				if (event == null) {
+					break;
+				}
+
+				slots.lazySet(index, null);
+				head = ++next;
+				count++;
+				try {
+					currentSink.write(event);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+
+			if (count > 0) {
+				currentSink.flush();
+			}
+			return count;
+		} finally {
+			drainLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package da25.base.log;
+
+/**
+ * Receives the events drained from the EventLog. Both methods are called by a
+ * single thread at a time, usually the logging one.
+ */
+public interface EventSink {
+	public void write(Event event);
+
+	/**
+	 * Called after every batch of events, the sink should make them visible.
+	 */
+	public void flush();
+}
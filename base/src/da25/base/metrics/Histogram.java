@@ -0,0 +1,127 @@
+package da25.base.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A striped histogram of durations (or any non-negative value), with buckets
+ * growing geometrically: every power of two is split into four buckets, so
+ * percentiles are accurate within about 20%.
+ */
+public class Histogram {
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets;
+	private final int stripes;
+	private final StripedCounter sum;
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram() {
+		this(Stripes.DEFAULT);
+	}
+
+	public Histogram(int stripes) {
+		this.stripes = Stripes.roundUp(stripes);
+		buckets = new AtomicLongArray(this.stripes * BUCKETS);
+		sum = new StripedCounter(this.stripes);
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		buckets.getAndIncrement(Stripes.current(stripes) * BUCKETS
+				+ bucket(value));
+		sum.add(value);
+
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Values below SUB_BUCKETS have a bucket each, the others are indexed by
+	 * their highest bit and the two bits following it.
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int fraction = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return (exponent - 1) * SUB_BUCKETS + fraction;
+	}
+
+	/**
+	 * @return The largest value falling in the given bucket.
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int exponent = bucket / SUB_BUCKETS + 1;
+		long fraction = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + fraction + 1) << (exponent - 2)) - 1;
+	}
+
+	private long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int stripe = 0; stripe < stripes; stripe++) {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] += buckets.get(stripe * BUCKETS + i);
+			}
+		}
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (long bucketCount : snapshot()) {
+			count += bucketCount;
+		}
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * @param fraction
+	 *            Between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return An upper bound of the value below which the given fraction of
+	 *         the recorded values fall, or zero if nothing was recorded.
+	 */
+	public long getPercentile(double fraction) {
+		long[] counts = snapshot();
+		long count = 0;
+		for (long bucketCount : counts) {
+			count += bucketCount;
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, target)) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
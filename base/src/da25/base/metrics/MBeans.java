@@ -0,0 +1,72 @@
+package da25.base.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers metrics with the platform MBean server, under the "da25" domain.
+ */
+public final class MBeans {
+	private MBeans() {
+	}
+
+	/**
+	 * @return True if the class of the object implements the interface a
+	 *         standard MBean needs, named after the class followed by "MBean".
+	 */
+	public static boolean isStandardMBean(Object object) {
+		String name = object.getClass().getName() + "MBean";
+		for (Class<?> implemented : object.getClass().getInterfaces()) {
+			if (implemented.getName().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers an MBean, replacing any previous one with the same name (e.g.
+	 * a process with the same ID in an earlier test case).
+	 * 
+	 * @param properties
+	 *            The key properties of the name, e.g. "type=Network".
+	 * @return True if the MBean was registered.
+	 */
+	synchronized public static boolean register(Object mbean,
+			String properties) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName("da25:" + properties);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+			return true;
+		} catch (JMException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Unregisters an MBean, if there is one with that name.
+	 * 
+	 * @param properties
+	 *            The key properties of the name, as given to register().
+	 */
+	synchronized public static void unregister(String properties) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName("da25:" + properties);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			/*
+			 * The MBean was unregistered by someone else in the meantime.
+			 */
+		}
+	}
+}
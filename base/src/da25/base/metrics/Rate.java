@@ -0,0 +1,23 @@
+package da25.base.metrics;
+
+/**
+ * Turns a growing count into a rate per second, measured between two reads
+ * at least a second apart. Reads closer than that return the last rate.
+ */
+public class Rate {
+	private static final long INTERVAL = 1000000000L;
+
+	private long lastTime = System.nanoTime();
+	private long lastCount = 0;
+	private double rate = 0;
+
+	synchronized public double update(long count) {
+		long now = System.nanoTime();
+		if (now - lastTime >= INTERVAL) {
+			rate = (count - lastCount) * 1e9 / (now - lastTime);
+			lastTime = now;
+			lastCount = count;
+		}
+		return rate;
+	}
+}
@@ -0,0 +1,44 @@
+package da25.base.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, each thread updating its own one, so
+ * that threads counting the same events do not contend on a single cache
+ * line. Reading sums all the cells and is meant to be rare.
+ */
+public class StripedCounter {
+	/**
+	 * Cells are this many longs apart, to keep them on different cache
+	 * lines.
+	 */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+	private final int stripes;
+
+	public StripedCounter() {
+		this(Stripes.DEFAULT);
+	}
+
+	public StripedCounter(int stripes) {
+		this.stripes = Stripes.roundUp(stripes);
+		cells = new AtomicLongArray(this.stripes * PADDING);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		cells.getAndAdd(Stripes.current(stripes) * PADDING, delta);
+	}
+
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < stripes; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,35 @@
+package da25.base.metrics;
+
+/**
+ * Picks the stripe of the calling thread for striped counters.
+ * <p>
+ * Thread IDs are assigned sequentially, so threads created one after the other
+ * (e.g. the ones of a pool) end up on different stripes.
+ */
+final class Stripes {
+	/**
+	 * Default number of stripes, a power of two at least twice the number of
+	 * processors.
+	 */
+	static final int DEFAULT = Integer.highestOneBit(Math.max(1, Runtime
+			.getRuntime().availableProcessors()) * 4 - 1);
+
+	private Stripes() {
+	}
+
+	/**
+	 * @param stripes
+	 *            A power of two.
+	 */
+	static int current(int stripes) {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ id >>> 16) & (stripes - 1);
+	}
+
+	/**
+	 * @return The smallest power of two not less than the given count.
+	 */
+	static int roundUp(int count) {
+		return count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+	}
+}
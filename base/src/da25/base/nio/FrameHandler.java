@@ -0,0 +1,25 @@
+package da25.base.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames read by a NioLoop. Both methods are called on the loop's
+ * thread, so they must not block.
+ */
+public interface FrameHandler {
+	/**
+	 * A complete frame has been read.
+	 * 
+	 * @param connection
+	 *            The connection the frame was read from.
+	 * @param frame
+	 *            The content of the frame, starting from the operation code.
+	 *            It is only valid until the method returns.
+	 */
+	public void onFrame(NioConnection connection, ByteBuffer frame);
+
+	/**
+	 * The connection has been closed, by the peer or because of an error.
+	 */
+	public void onClose(NioConnection connection);
+}
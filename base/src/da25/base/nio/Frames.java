@@ -0,0 +1,200 @@
+package da25.base.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import da25.base.Message;
+import da25.base.VectorClock;
+
+/**
+ * Operation codes and binary encoding of the frames exchanged by the NIO
+ * transport.
+ * <p>
+ * A frame is made of its length (a 4 bytes integer, not counting itself), an
+ * operation code and the arguments of the operation. Requests expecting an
+ * answer (REGISTER, REGISTER_ID, GET_IDS) carry a request ID which is sent
+ * back in the REPLY frame, all the other operations are one-way (except
+ * SEND_TEXT).
+ */
+public final class Frames {
+	/**
+	 * Client to server: register(process), with request ID.
+	 */
+	public static final byte REGISTER = 1;
+
+	/**
+	 * Client to server: register(process, id), with request ID and ID.
+	 */
+	public static final byte REGISTER_ID = 2;
+
+	/**
+	 * Client to server: getIds(), with request ID.
+	 */
+	public static final byte GET_IDS = 3;
+
+	/**
+	 * Client to server: sendMessage(message).
+	 */
+	public static final byte SEND = 4;
+
+	/**
+	 * Answer to a request, with request ID, status and either the registered
+	 * ID or the list of IDs. Also sent by clients to acknowledge SEND_TEXT.
+	 */
+	public static final byte REPLY = 5;
+
+	/**
+	 * Server to client: start().
+	 */
+	public static final byte START = 6;
+
+	/**
+	 * Server to client: recieveMessage(message).
+	 */
+	public static final byte RECEIVE = 7;
+
+	/**
+	 * Server to client: recieveMessages(messages), with the number of
+	 * messages.
+	 */
+	public static final byte RECEIVE_BATCH = 8;
+
+	/**
+	 * Server to client: exit().
+	 */
+	public static final byte EXIT = 9;
+
+	/**
+	 * Server to client: sendMessage(recipient, body), with request ID. Unlike
+	 * the other calls from the server, it waits for the process to have sent
+	 * the message, as scripted test cases expect to find it in the queue.
+	 */
+	public static final byte SEND_TEXT = 10;
+
+	/**
+	 * Client to server: multicast(message, recipients), with the recipients
+	 * as written by RecipientSet.write(), preceded by their length.
+	 */
+	public static final byte MULTICAST = 11;
+
+	/**
+	 * Client to server: submitRound(outbox), with the sender, a byte telling
+	 * whether the outbox is quiescent, the number of messages, and every
+	 * message preceded by a byte telling whether it is a multicast, in which
+	 * case it is followed by its recipients as in MULTICAST.
+	 */
+	public static final byte SUBMIT_ROUND = 12;
+
+	/**
+	 * Reply status: the request succeeded.
+	 */
+	public static final byte STATUS_OK = 0;
+
+	/**
+	 * Reply status: the network is locked.
+	 */
+	public static final byte STATUS_LOCKED = 1;
+
+	/**
+	 * Reply status: the requested ID is already in use.
+	 */
+	public static final byte STATUS_DUPLICATE = 2;
+
+	private static final byte HAS_CLOCK = 1;
+	private static final byte DELTA_CLOCK = 2;
+	private static final byte HAS_BODY = 4;
+
+	private Frames() {
+	}
+
+	/**
+	 * @return The encoded body of a message, to be passed to messageSize()
+	 *         and writeMessage(), or null if it has no body.
+	 */
+	public static byte[] encodeBody(Message message) {
+		if (message.body == null) {
+			return null;
+		}
+
+		return message.body.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return The number of bytes writeMessage() will write.
+	 */
+	public static int messageSize(Message message, byte[] body) {
+		int size = 4 * 5 + 1;
+		if (message.clock != null) {
+			size += 4 + 4 * message.clock.length();
+		}
+		if (body != null) {
+			size += 4 + body.length;
+		}
+		return size;
+	}
+
+	public static void writeMessage(ByteBuffer buffer, Message message,
+			byte[] body) {
+		byte flags = 0;
+		if (message.clock != null) {
+			flags |= HAS_CLOCK;
+		}
+		if (message.deltaClock) {
+			flags |= DELTA_CLOCK;
+		}
+		if (body != null) {
+			flags |= HAS_BODY;
+		}
+
+		buffer.putInt(message.sender);
+		buffer.putInt(message.recipient);
+		buffer.putInt(message.kind);
+		buffer.putInt(message.first);
+		buffer.putInt(message.second);
+		buffer.put(flags);
+
+		if (message.clock != null) {
+			int length = message.clock.length();
+			buffer.putInt(length);
+			for (int i = 0; i < length; i++) {
+				buffer.putInt(message.clock.get(i));
+			}
+		}
+
+		if (body != null) {
+			buffer.putInt(body.length);
+			buffer.put(body);
+		}
+	}
+
+	public static Message readMessage(ByteBuffer buffer) {
+		int sender = buffer.getInt();
+		int recipient = buffer.getInt();
+		Message message = new Message(sender, recipient, null, null);
+		message.kind = buffer.getInt();
+		message.first = buffer.getInt();
+		message.second = buffer.getInt();
+		byte flags = buffer.get();
+
+		if ((flags & HAS_CLOCK) != 0) {
+			VectorClock clock = new VectorClock();
+			int length = buffer.getInt();
+			for (int i = 0; i < length; i++) {
+				int value = buffer.getInt();
+				if (value != 0) {
+					clock.set(i, value);
+				}
+			}
+			message.clock = clock;
+		}
+		message.deltaClock = (flags & DELTA_CLOCK) != 0;
+
+		if ((flags & HAS_BODY) != 0) {
+			byte[] body = new byte[buffer.getInt()];
+			buffer.get(body);
+			message.body = new String(body, StandardCharsets.UTF_8);
+		}
+
+		return message;
+	}
+}
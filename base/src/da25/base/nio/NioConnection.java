@@ -0,0 +1,187 @@
+package da25.base.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A non-blocking connection carrying length-prefixed frames.
+ * <p>
+ * Any thread can write frames: they are encoded straight into a direct output
+ * buffer and flushed by the loop's thread as soon as the socket accepts them,
+ * so that consecutive one-way frames are pipelined into as few writes as
+ * possible and the writer never waits for the network.
+ */
+public class NioConnection {
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final NioLoop loop;
+	final SocketChannel channel;
+	SelectionKey key;
+
+	/**
+	 * Bytes read but not yet consumed as frames, only used by the loop.
+	 */
+	private ByteBuffer in = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+
+	/**
+	 * Frames written but not yet flushed, guarded by outLock.
+	 */
+	private ByteBuffer out = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+
+	private final ReentrantLock outLock = new ReentrantLock();
+
+	/**
+	 * Position of the length of the frame being written.
+	 */
+	private int frameStart;
+
+	/**
+	 * True when the loop has been asked to flush the output buffer.
+	 */
+	private boolean flushRequested = false;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Arbitrary object attached by the frame handler.
+	 */
+	public volatile Object attachment;
+
+	NioConnection(NioLoop loop, SocketChannel channel) {
+		this.loop = loop;
+		this.channel = channel;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Starts writing a frame. It must always be followed by endFrame(), even
+	 * when encoding fails, since the connection stays locked in between.
+	 * 
+	 * @param size
+	 *            The size of the frame, operation code included.
+	 * @return The output buffer, where exactly size bytes must be put.
+	 * @throws IOException
+	 *             The connection is closed.
+	 */
+	public ByteBuffer beginFrame(int size) throws IOException {
+		outLock.lock();
+		if (closed) {
+			outLock.unlock();
+			throw new IOException("Connection closed");
+		}
+
+		if (out.remaining() < size + 4) {
+			int capacity = out.capacity();
+			while (capacity - out.position() < size + 4) {
+				capacity *= 2;
+			}
+			ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+			out.flip();
+			larger.put(out);
+			out = larger;
+		}
+
+		frameStart = out.position();
+		out.putInt(0);
+		return out;
+	}
+
+	/**
+	 * Completes the frame started by beginFrame() and schedules its flush.
+	 */
+	public void endFrame() {
+		try {
+			out.putInt(frameStart, out.position() - frameStart - 4);
+			if (!flushRequested) {
+				flushRequested = true;
+				loop.requestFlush(this);
+			}
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes as much as possible of the output buffer, called by the loop.
+	 * 
+	 * @return True if everything was written.
+	 */
+	boolean flush() throws IOException {
+		outLock.lock();
+		try {
+			out.flip();
+			channel.write(out);
+			out.compact();
+
+			if (out.position() == 0) {
+				flushRequested = false;
+				return true;
+			}
+
+			return false;
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads what is available and passes complete frames to the handler,
+	 * called by the loop.
+	 * 
+	 * @return False if the peer closed the connection.
+	 */
+	boolean read(FrameHandler handler) throws IOException {
+		if (channel.read(in) < 0) {
+			return false;
+		}
+
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (in.remaining() < length + 4) {
+				if (length + 4 > in.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(
+							in.capacity() * 2, length + 4));
+					larger.put(in);
+					in = larger;
+					return true;
+				}
+				break;
+			}
+
+			int end = in.position() + 4 + length;
+			int limit = in.limit();
+			in.position(in.position() + 4);
+			in.limit(end);
+			handler.onFrame(this, in.slice());
+			in.limit(limit);
+			in.position(end);
+		}
+		in.compact();
+
+		return true;
+	}
+
+	/**
+	 * Closes the connection, any further write will fail.
+	 */
+	public void close() {
+		outLock.lock();
+		try {
+			closed = true;
+		} finally {
+			outLock.unlock();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package da25.base.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import da25.base.log.EventLog;
+
+/**
+ * A single thread serving any number of non-blocking connections with a
+ * selector, either accepted by listening on a port or opened towards a server.
+ * <p>
+ * Like exported RMI objects, a running loop keeps the VM alive.
+ */
+public class NioLoop implements Runnable {
+	/**
+	 * Default port of the NIO transport, next to the one of the RMI registry.
+	 */
+	public static final int DEFAULT_PORT = 1100;
+
+	private final Selector selector;
+	private final FrameHandler handler;
+
+	/**
+	 * Connections whose output buffer must be flushed, filled by writers.
+	 */
+	private final ConcurrentLinkedQueue<NioConnection> flushRequests = new ConcurrentLinkedQueue<>();
+
+	private final Thread thread;
+
+	public NioLoop(FrameHandler handler, String name) throws IOException {
+		this.handler = handler;
+		selector = Selector.open();
+		thread = new Thread(this, name);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Accepts connections on the given port, every one of them will be served
+	 * by this loop. Must be called before start().
+	 * 
+	 * @param port
+	 *            The port to listen on, or zero for any free one.
+	 * @return The port actually listened on.
+	 */
+	public int listen(int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Opens a connection to a server, which will be served by this loop. Must
+	 * be called before start().
+	 */
+	public NioConnection connect(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		return add(channel);
+	}
+
+	private NioConnection add(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		NioConnection connection = new NioConnection(this, channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ,
+				connection);
+		return connection;
+	}
+
+	/**
+	 * Called by writers, the loop will flush the connection as soon as
+	 * possible.
+	 */
+	void requestFlush(NioConnection connection) {
+		flushRequests.add(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			NioConnection pending;
+			while ((pending = flushRequests.poll()) != null) {
+				flush(pending);
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if (!key.isValid()) {
+					continue;
+				}
+
+				if (key.isAcceptable()) {
+					accept((ServerSocketChannel) key.channel());
+					continue;
+				}
+
+				NioConnection connection = (NioConnection) key.attachment();
+				if (key.isReadable()) {
+					try {
+						if (!connection.read(handler)) {
+							close(connection);
+							continue;
+						}
+					} catch (IOException e) {
+						close(connection);
+						continue;
+					} catch (RuntimeException e) {
+						/*
+						 * A frame the handler couldn't cope with only costs
+						 * the connection it came from, not the whole loop.
+						 */
+						EventLog.error(
+								"Closing a connection after a failed frame.", e);
+						close(connection);
+						continue;
+					}
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					flush(connection);
+				}
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) {
+		try {
+			SocketChannel channel = server.accept();
+			if (channel != null) {
+				add(channel);
+			}
+		} catch (IOException e) {
+			e.printStackTrace(System.out);
+		}
+	}
+
+	private void flush(NioConnection connection) {
+		if (connection.isClosed() || !connection.key.isValid()) {
+			return;
+		}
+
+		try {
+			if (connection.flush()) {
+				connection.key.interestOps(SelectionKey.OP_READ);
+			} else {
+				connection.key.interestOps(SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void close(NioConnection connection) {
+		connection.key.cancel();
+		connection.close();
+		handler.onClose(connection);
+	}
+}
@@ -0,0 +1,247 @@
+package da25.base.trace;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import da25.base.log.EventLog;
+
+/**
+ * Binary trace of the messages going through networks and processes, for
+ * reproducing and studying a run offline (see TraceReader).
+ * <p>
+ * Every event is a fixed-size record appended to a memory-mapped file: a
+ * recording thread claims its slot with a single atomic addition and writes
+ * the record straight into the mapping, so it never takes a lock nor makes a
+ * system call, apart from mapping a new segment of the file every
+ * SEGMENT_SIZE bytes. Records are in the order their slots were claimed.
+ * <p>
+ * The trace is recorded into the file named by the system property
+ * da25.trace, if any, or started and stopped at any time. The file is flushed
+ * when the trace stops and when the VM shuts down, the end of its last segment
+ * being left empty. A record being written while the trace stops may be
+ * lost.
+ */
+public final class Trace {
+	/**
+	 * A process handed a message to the network. The peer is the recipient
+	 * (Constants.BROADCAST for broadcasts and multicasts), the info the number
+	 * of copies.
+	 */
+	public static final byte ENQUEUE = 1;
+
+	/**
+	 * The network is forwarding a message to the process. The peer is the
+	 * sender.
+	 */
+	public static final byte FORWARD = 2;
+
+	/**
+	 * The process received a message it can't deliver yet. The peer is the
+	 * sender, the info the clock entry the message is waiting for.
+	 */
+	public static final byte BUFFER = 3;
+
+	/**
+	 * The process delivered a message. The peer is the sender, the info the
+	 * kind of the message.
+	 */
+	public static final byte DELIVER = 4;
+
+	/**
+	 * A synchronous network started a round, the sequence being its number
+	 * and the info the number of messages forwarded.
+	 */
+	public static final byte ROUND = 5;
+
+	/**
+	 * The process was elected, the info being its level.
+	 */
+	public static final byte ELECTED = 6;
+
+	static final byte[] MAGIC = "DA25TRC1".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Size of the header, holding the magic number, the record size and the
+	 * wall clock time the trace started at, in milliseconds.
+	 */
+	static final int HEADER_SIZE = 32;
+
+	/**
+	 * Size of a record: type (1 byte, then 3 unused), process, peer,
+	 * sequence, info (4 bytes each, then 4 unused) and time in nanoseconds
+	 * since the start of the trace (8 bytes). The type is written last, a
+	 * zero type marks the end of the trace.
+	 */
+	static final int RECORD_SIZE = 32;
+
+	/**
+	 * Size of the segments the file is mapped in, a multiple of RECORD_SIZE.
+	 */
+	static final int SEGMENT_SIZE = 1 << 26;
+
+	private static volatile Writer writer = null;
+
+	static {
+		String path = System.getProperty("da25.trace");
+		if (path != null) {
+			try {
+				start(path);
+			} catch (IOException e) {
+				EventLog.error("Unable to record trace {}", path, e);
+			}
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				stop();
+			}
+		}));
+	}
+
+	private Trace() {
+	}
+
+	/**
+	 * @return True if a trace is being recorded. Callers only need to check
+	 *         it to avoid computing the fields of a record.
+	 */
+	public static boolean isEnabled() {
+		return writer != null;
+	}
+
+	/**
+	 * Starts recording a new trace, replacing both the trace being recorded,
+	 * which is stopped, and the file, if they exist.
+	 */
+	synchronized public static void start(String path) throws IOException {
+		stop();
+		writer = new Writer(path);
+		EventLog.info("Recording trace {}", path);
+	}
+
+	/**
+	 * Stops recording, flushing the trace to its file. Does nothing if no
+	 * trace is being recorded.
+	 */
+	synchronized public static void stop() {
+		Writer current = writer;
+		if (current != null) {
+			writer = null;
+			current.close();
+		}
+	}
+
+	/**
+	 * Appends a record, if a trace is being recorded.
+	 * 
+	 * @param process
+	 *            The process the event happened at.
+	 * @param peer
+	 *            The other end of the message.
+	 * @param sequence
+	 *            The number the network gave to the message (see
+	 *            Message.sequence).
+	 */
+	public static void record(byte type, int process, int peer, int sequence,
+			int info) {
+		Writer current = writer;
+		if (current != null) {
+			current.write(type, process, peer, sequence, info);
+		}
+	}
+
+	private static final class Writer {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long start = System.nanoTime();
+
+		/**
+		 * Position of the next record to be claimed.
+		 */
+		private final AtomicLong next = new AtomicLong(HEADER_SIZE);
+
+		/**
+		 * Segments mapped so far, only replaced while holding the writer's
+		 * lock.
+		 */
+		private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+		Writer(String path) throws IOException {
+			file = new RandomAccessFile(path, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+
+			MappedByteBuffer first = segment(0);
+			first.put(MAGIC);
+			first.putInt(RECORD_SIZE);
+			first.putLong(System.currentTimeMillis());
+		}
+
+		void write(byte type, int process, int peer, int sequence, int info) {
+			long time = System.nanoTime() - start;
+			long position = next.getAndAdd(RECORD_SIZE);
+			MappedByteBuffer segment = segment((int) (position / SEGMENT_SIZE));
+			if (segment == null) {
+				return;
+			}
+
+			int offset = (int) (position % SEGMENT_SIZE);
+			segment.putInt(offset + 4, process);
+			segment.putInt(offset + 8, peer);
+			segment.putInt(offset + 12, sequence);
+			segment.putInt(offset + 16, info);
+			segment.putLong(offset + 24, time);
+			segment.put(offset, type);
+		}
+
+		/**
+		 * @return The segment, mapped if needed, or null if the trace was
+		 *         closed or the file couldn't be extended.
+		 */
+		private MappedByteBuffer segment(int index) {
+			MappedByteBuffer[] current = segments;
+			if (index < current.length) {
+				return current[index];
+			}
+
+			synchronized (this) {
+				current = segments;
+				if (index < current.length) {
+					return current[index];
+				}
+
+				try {
+					MappedByteBuffer[] grown = Arrays.copyOf(current,
+							index + 1);
+					for (int i = current.length; i <= index; i++) {
+						grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+								(long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+					}
+					segments = grown;
+					return grown[index];
+				} catch (IOException e) {
+					EventLog.error("Unable to extend trace", e);
+					return null;
+				}
+			}
+		}
+
+		synchronized void close() {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+
+			try {
+				file.close();
+			} catch (IOException e) {
+				EventLog.error("Unable to close trace", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package da25.base.trace;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Reads the records of a trace written by Trace, one at a time.
+ * <p>
+ * Usage: TraceReader file, to print a trace as text.
+ */
+public class TraceReader implements Closeable {
+	private final DataInputStream in;
+	private final long startedAt;
+
+	private byte type;
+	private int process, peer, sequence, info;
+	private long time;
+
+	/**
+	 * @throws IOException
+	 *             The file can't be read or is not a trace.
+	 */
+	public TraceReader(String path) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				path), 1 << 16));
+
+		byte[] header = new byte[Trace.HEADER_SIZE];
+		try {
+			in.readFully(header);
+		} catch (EOFException e) {
+			in.close();
+			throw new IOException("Not a trace: " + path);
+		}
+
+		DataInputStream fields = new DataInputStream(
+				new ByteArrayInputStream(header));
+		byte[] magic = new byte[Trace.MAGIC.length];
+		fields.readFully(magic);
+		if (!Arrays.equals(magic, Trace.MAGIC)
+				|| fields.readInt() != Trace.RECORD_SIZE) {
+			in.close();
+			throw new IOException("Not a trace: " + path);
+		}
+		startedAt = fields.readLong();
+	}
+
+	/**
+	 * @return The wall clock time the trace started at, in milliseconds.
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	/**
+	 * Moves to the next record.
+	 * 
+	 * @return False at the end of the trace.
+	 */
+	public boolean next() throws IOException {
+		try {
+			type = in.readByte();
+			if (type == 0) {
+				return false;
+			}
+			in.skipBytes(3);
+			process = in.readInt();
+			peer = in.readInt();
+			sequence = in.readInt();
+			info = in.readInt();
+			in.skipBytes(4);
+			time = in.readLong();
+			return true;
+		} catch (EOFException e) {
+			type = 0;
+			return false;
+		}
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getProcess() {
+		return process;
+	}
+
+	public int getPeer() {
+		return peer;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public int getInfo() {
+		return info;
+	}
+
+	/**
+	 * @return The time of the event, in nanoseconds since the start of the
+	 *         trace.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public static String typeName(byte type) {
+		switch (type) {
+		case Trace.ENQUEUE:
+			return "enqueue";
+		case Trace.FORWARD:
+			return "forward";
+		case Trace.BUFFER:
+			return "buffer";
+		case Trace.DELIVER:
+			return "deliver";
+		case Trace.ROUND:
+			return "round";
+		case Trace.ELECTED:
+			return "elected";
+		default:
+			return "unknown(" + type + ")";
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%12.3f %-8s process %d peer %d seq %d info %d",
+				time / 1e6, typeName(type), process, peer, sequence, info);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: TraceReader file");
+			System.exit(1);
+		}
+
+		try (TraceReader reader = new TraceReader(args[0])) {
+			System.out.println("Trace started at "
+					+ new Date(reader.getStartedAt()));
+			while (reader.next()) {
+				System.out.println(reader);
+			}
+		}
+	}
+}
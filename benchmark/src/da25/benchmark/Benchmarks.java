@@ -0,0 +1,37 @@
+package da25.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the project, reporting throughput together with
+ * the allocation rate measured by the GC profiler.
+ * <p>
+ * The project expects JMH (jmh-core, jmh-generator-annprocess and their
+ * dependency jopt-simple and commons-math3) in a user library named "JMH",
+ * and the annotation processor jars in the folder pointed by the JMH_HOME
+ * classpath variable, so that Eclipse generates the benchmark list while
+ * building.
+ * <p>
+ * Usage: Benchmarks [regexp...], where every regular expression selects the
+ * benchmarks to run (all of them by default), e.g. "VectorClock" or
+ * "Election.*elect".
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(
+				GCProfiler.class).forks(1);
+
+		if (args.length == 0) {
+			options.include("da25\\.benchmark\\..*");
+		}
+		for (String pattern : args) {
+			options.include(pattern);
+		}
+
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,113 @@
+package da25.benchmark;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import da25.base.Constants;
+import da25.base.Message;
+import da25.base.VectorClock;
+import da25.base.exceptions.DuplicateIDException;
+import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.server.BssNetwork;
+
+/**
+ * Network.sendMessage() for broadcasts, in networks of several sizes.
+ * <p>
+ * Queueing a broadcast only stores its envelope, the copies for every
+ * recipient are created when the queue is drained, so both steps are
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BroadcastBenchmark {
+	/**
+	 * Broadcasts queued before the queue is emptied, when only measuring the
+	 * queueing.
+	 */
+	private static final int BATCH = 1024;
+
+	@Param({ "10", "100", "1000" })
+	public int processes;
+
+	private QueueingNetwork network;
+	private Message message;
+	private int queued = 0;
+
+	@Setup
+	public void setUp() throws LockedException, DuplicateIDException {
+		EventLog.setLevel(EventLog.OFF);
+
+		network = new QueueingNetwork();
+		network.populate(processes);
+
+		VectorClock clock = new VectorClock();
+		clock.increase(1);
+		message = new Message(1, Constants.BROADCAST, clock, "Broadcast");
+	}
+
+	@TearDown
+	public void tearDown() {
+		network.shutdown();
+	}
+
+	/**
+	 * Queues a broadcast. Every BATCH broadcasts the queue is emptied
+	 * without expanding them, so that it doesn't grow for the whole
+	 * iteration, which only adds a constant share to every broadcast.
+	 */
+	@Benchmark
+	public void send() throws RemoteException {
+		network.sendMessage(message);
+		if (++queued == BATCH) {
+			network.clear();
+			queued = 0;
+		}
+	}
+
+	/**
+	 * Queues a broadcast and drains the queue, expanding it into one copy per
+	 * recipient.
+	 */
+	@Benchmark
+	public int sendAndExpand() throws RemoteException {
+		network.sendMessage(message);
+		return network.drain();
+	}
+
+	/**
+	 * A network whose messages are never forwarded, only queued and drained.
+	 */
+	private static class QueueingNetwork extends BssNetwork {
+		void populate(int size) throws LockedException, DuplicateIDException {
+			populateNetwork(size);
+		}
+
+		void clear() {
+			queue.clear();
+		}
+
+		/**
+		 * @return The number of recipients the queue was holding messages
+		 *         for.
+		 */
+		int drain() {
+			return drainQueueByRecipient().size();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package da25.benchmark;
+
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import da25.base.Message;
+import da25.base.VectorClock;
+import da25.base.log.EventLog;
+import da25.process.BssProcess;
+
+/**
+ * Causal delivery by BssProcess.recieveMessage(), when a given fraction of the
+ * messages arrives out of causal order and has to wait in the buffer.
+ * <p>
+ * Every invocation delivers the same sequence of broadcasts to a fresh
+ * process. The sequence is built once: each message causally follows all the
+ * previous ones, then some of them are moved later.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BssDeliveryBenchmark {
+	private static final int MESSAGES = 1024;
+
+	/**
+	 * How far a reordered message can be moved.
+	 */
+	private static final int WINDOW = 16;
+
+	@Param({ "0", "0.1", "0.5" })
+	public double reorderRate;
+
+	/**
+	 * Number of processes sending the messages.
+	 */
+	@Param({ "8", "64" })
+	public int senders;
+
+	private Message[] messages;
+
+	@Setup
+	public void setUp() {
+		EventLog.setLevel(EventLog.OFF);
+
+		VectorClock clock = new VectorClock();
+		Random random = new Random(42);
+		messages = new Message[MESSAGES];
+		for (int i = 0; i < MESSAGES; i++) {
+			int sender = random.nextInt(senders) + 1;
+			clock.increase(sender);
+			messages[i] = new Message(sender, 0, new VectorClock(clock),
+					"Message " + i);
+		}
+
+		for (int i = 0; i < MESSAGES; i++) {
+			if (random.nextDouble() < reorderRate) {
+				int other = Math.min(MESSAGES - 1, i + 1 + random.nextInt(WINDOW));
+				Message swapped = messages[i];
+				messages[i] = messages[other];
+				messages[other] = swapped;
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public BssProcess deliver() throws RemoteException {
+		BssProcess process = new BssProcess();
+		for (Message message : messages) {
+			process.recieveMessage(message);
+		}
+
+		if (process.getBufferSize() != 0) {
+			throw new IllegalStateException("Messages left in the buffer");
+		}
+		return process;
+	}
+}
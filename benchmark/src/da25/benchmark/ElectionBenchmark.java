@@ -0,0 +1,105 @@
+package da25.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import da25.base.exceptions.DuplicateIDException;
+import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.process.AgProcess;
+import da25.server.AgNetwork;
+
+/**
+ * A complete election in an in-process AgNetwork, from the first round to the
+ * election of a candidate, for networks of several sizes.
+ * <p>
+ * Elections take milliseconds to seconds, so each of them is timed on its own
+ * and the network is rebuilt before every one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class ElectionBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int processes;
+
+	/**
+	 * Number of processes starting as candidates.
+	 */
+	@Param({ "5" })
+	public int candidates;
+
+	private ElectionNetwork network;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws LockedException, DuplicateIDException {
+		EventLog.setLevel(EventLog.OFF);
+
+		network = new ElectionNetwork();
+		network.populate(processes, candidates, new Random(processes));
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		network.shutdown();
+	}
+
+	@Benchmark
+	public AgProcess elect() throws InterruptedException {
+		return network.elect();
+	}
+
+	/**
+	 * A network running a single election in automatic mode.
+	 */
+	private static class ElectionNetwork extends AgNetwork {
+		private final ArrayList<AgProcess> candidates = new ArrayList<>();
+
+		void populate(int size, int candidatesCount, Random random)
+				throws LockedException, DuplicateIDException {
+			populateNetwork(size);
+
+			while (candidates.size() < candidatesCount) {
+				AgProcess candidate = (AgProcess) processes.get(random
+						.nextInt(size) + 1);
+				if (!candidates.contains(candidate)) {
+					candidate.startCandidate();
+					candidates.add(candidate);
+				}
+			}
+		}
+
+		/**
+		 * Starts the rounds and waits for a candidate to be elected.
+		 */
+		AgProcess elect() throws InterruptedException {
+			performCommand(null, "auto");
+
+			while (true) {
+				for (AgProcess candidate : candidates) {
+					if (candidate.isElected()) {
+						return candidate;
+					}
+				}
+
+				Thread.sleep(0, 100000);
+			}
+		}
+	}
+}
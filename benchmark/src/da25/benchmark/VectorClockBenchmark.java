@@ -0,0 +1,80 @@
+package da25.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import da25.base.VectorClock;
+
+/**
+ * The basic operations of VectorClock, for clocks of several sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class VectorClockBenchmark {
+	/**
+	 * Number of entries of the clocks.
+	 */
+	@Param({ "4", "64", "1024" })
+	public int size;
+
+	private VectorClock clock;
+	private VectorClock smaller;
+	private VectorClock target;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		clock = new VectorClock();
+		smaller = new VectorClock();
+		target = new VectorClock();
+		for (int i = 0; i < size; i++) {
+			clock.set(i, i + 1);
+			smaller.set(i, i);
+		}
+	}
+
+	@Benchmark
+	public VectorClock increase() {
+		clock.increase(next);
+		next = next + 1 == size ? 0 : next + 1;
+		return clock;
+	}
+
+	/**
+	 * Every entry has to be compared, as in a successful causal check.
+	 */
+	@Benchmark
+	public boolean greaterEqual() {
+		return clock.greaterEqual(smaller);
+	}
+
+	@Benchmark
+	public VectorClock copy() {
+		return new VectorClock(clock);
+	}
+
+	@Benchmark
+	public VectorClock copyFrom() {
+		target.copyFrom(clock);
+		return target;
+	}
+
+	@Benchmark
+	public VectorClock merge() {
+		target.merge(clock);
+		return target;
+	}
+}
@@ -2,22 +2,43 @@ package da25.process;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import da25.base.Constants;
 import da25.base.Message;
+import da25.base.Outbox;
+import da25.base.RecipientSet;
+import da25.base.log.EventLog;
+import da25.base.trace.Trace;
 
 public class AgProcess extends Process {
-	private final static String CANDIDATE = "MSG_CAN";
-	private final static String ACK = "MSG_ACK";
+	/**
+	 * Candidate message, the first field is the level of the candidate and the
+	 * second one its ID.
+	 */
+	private final static int CANDIDATE = Constants.KIND_FIRST_CUSTOM;
+	private final static int ACK = Constants.KIND_FIRST_CUSTOM + 1;
 
 	public boolean randomize = true;
 
 	private boolean isCandidate = false;
 	private int candidateLevel = -1;
-	private ArrayList<Integer> links;
+
+	/**
+	 * IDs of the processes not captured yet, the first linkCount being used.
+	 * Without randomization they are kept in decreasing order, so that the
+	 * lowest IDs are captured first.
+	 */
+	private int[] links;
+	private int linkCount = 0;
+
+	/**
+	 * Source of the choice of the links to capture, seeded with the ID.
+	 */
+	private Random rnd;
 	private int candidatesTarget = 0;
 	private int candidatesCount = 0;
 
@@ -28,6 +49,18 @@ public class AgProcess extends Process {
 
 	private boolean isElected = false;
 
+	/**
+	 * True once the process has submitted a quiescent outbox, until it becomes
+	 * a candidate.
+	 */
+	private boolean quiescent = false;
+
+	/**
+	 * Messages of the current round, submitted at its end together with the
+	 * readiness of the process.
+	 */
+	private Outbox outbox;
+
 	@Override
 	synchronized public void recieveMessage(Message message)
 			throws RemoteException {
@@ -35,12 +68,14 @@ public class AgProcess extends Process {
 
 		switch (message.sender) {
 		case Constants.NETWORK:
-			if (message.body == Constants.PULSE_ROUND) {
+			if (message.kind == Constants.KIND_PULSE_ROUND) {
 				pulse();
 			}
 			break;
 		default:
-			switch (message.body.substring(0, 7)) {
+			Trace.record(Trace.DELIVER, id, message.sender, message.sequence,
+					message.kind);
+			switch (message.kind) {
 			case CANDIDATE:
 				candidates.add(message);
 				break;
@@ -48,20 +83,32 @@ public class AgProcess extends Process {
 				candidatesCount++;
 				break;
 			default:
-				System.out.println(message + " discarded");
+				EventLog.info("{} discarded", message);
 				break;
 			}
 			break;
 		}
 	}
 
+	@Override
+	synchronized public void recieveMessages(List<Message> messages)
+			throws RemoteException {
+		super.recieveMessages(messages);
+	}
+
 	/**
 	 * The network signalled that all message for this round were delivered.
 	 * <p>
 	 * The candidate process checks the number of ACKs received, the ordinary
 	 * process sorts the candidate messages received and answers if necessary.
+	 * A process that is not a candidate only acts on candidate messages, so
+	 * it declares itself quiescent until it receives some.
 	 */
 	private void pulse() {
+		if (outbox == null) {
+			outbox = new Outbox(id);
+		}
+
 		if (isCandidate) {
 			performCandidateRound();
 		}
@@ -76,39 +123,46 @@ public class AgProcess extends Process {
 
 		if (candidateLevel % 2 == 0) {
 			if (candidatesCount < candidatesTarget) {
-				System.out.println("Process " + id + " no longer a candidate.");
+				EventLog.info("Process {} no longer a candidate.", id);
 				isCandidate = false;
 			} else {
 
-				if (links.isEmpty()) {
+				if (linkCount == 0) {
 					isElected = true;
-					System.out.println("Elected process " + id + "!");
+					EventLog.info("Elected process {}!", id);
+					Trace.record(Trace.ELECTED, id, 0, 0, candidateLevel);
 				} else {
 					candidatesTarget = (int) Math.min(
 							Math.pow(2D, (double) candidateLevel / 2D),
-							links.size());
-
-					if (randomize) {
-						Collections.shuffle(links, new Random(id));
-					}
-
-					Iterator<Integer> iter = links.iterator();
-					for (int i = 0; i < candidatesTarget; i++) {
-						int recipient = iter.next();
-						try {
-							network.sendMessage(new Message(id, recipient,
-									null, CANDIDATE + "|" + candidateLevel
-											+ "|" + id));
-							iter.remove();
-						} catch (RemoteException e) {
-							throw new RuntimeException(e);
-						}
-					}
+							linkCount);
+
+					outbox.multicast(new Message(id, Constants.BROADCAST,
+							CANDIDATE, candidateLevel, id),
+							RecipientSet.of(takeLinks(candidatesTarget)));
 				}
 			}
 		}
 	}
 
+	/**
+	 * Removes links from the ones not captured yet, picked at random with a
+	 * partial Fisher-Yates shuffle: every pick is swapped with the last link
+	 * in use, so it takes time linear in the number of links taken, whatever
+	 * the number left.
+	 * 
+	 * @return The IDs of the links taken.
+	 */
+	private int[] takeLinks(int count) {
+		int[] taken = new int[count];
+		for (int i = 0; i < count; i++) {
+			int last = --linkCount;
+			int picked = randomize ? rnd.nextInt(last + 1) : last;
+			taken[i] = links[picked];
+			links[picked] = links[last];
+		}
+		return taken;
+	}
+
 	private void performOrdinaryRound() {
 		if (ordinaryId == -1) {
 			ordinaryId = id;
@@ -119,11 +173,8 @@ public class AgProcess extends Process {
 			int largestId = -1;
 
 			for (Message message : candidates) {
-				message.body = message.body.substring(8);
-				int otherLevel = Integer.parseInt(message.body.substring(0,
-						message.body.indexOf('|')));
-				int otherId = Integer.parseInt(message.body
-						.substring(message.body.indexOf('|') + 1));
+				int otherLevel = message.first;
+				int otherId = message.second;
 				if (pairIsLarger(largestLevel, largestId, otherLevel, otherId)) {
 					largestLevel = otherLevel;
 					largestId = otherId;
@@ -139,11 +190,7 @@ public class AgProcess extends Process {
 			}
 
 			if (winningLink > -1) {
-				try {
-					network.sendMessage(new Message(id, winningLink, null, ACK));
-				} catch (RemoteException e) {
-					throw new RuntimeException(e);
-				}
+				outbox.send(new Message(id, winningLink, ACK, 0, 0));
 			}
 
 			ordinaryLevel++;
@@ -155,12 +202,17 @@ public class AgProcess extends Process {
 		candidates.clear();
 
 		try {
-			if (!isElected) {
-				network.sendMessage(new Message(id, Constants.NETWORK, null,
-						Constants.READY_ROUND));
+			if (isElected) {
+				outbox.sendEach(network);
+			} else {
+				outbox.quiescent = !isCandidate;
+				quiescent = outbox.quiescent;
+				network.submitRound(outbox);
 			}
 		} catch (RemoteException e) {
 			throw new RuntimeException(e);
+		} finally {
+			outbox.clear();
 		}
 	}
 
@@ -172,29 +224,60 @@ public class AgProcess extends Process {
 			try {
 				network.sendMessage(message);
 			} catch (RemoteException e) {
-				System.out.println("Unable to send message " + message
-						+ ", because of: " + e.getMessage());
+				EventLog.error("Unable to send message {}, because of: {}",
+						message, e.getMessage());
 			}
 		}
 	}
 
-	public void startCandidate() {
+	/**
+	 * @return True once the process has been elected.
+	 */
+	synchronized public boolean isElected() {
+		return isElected;
+	}
+
+	synchronized public void startCandidate() {
 		if (isCandidate) {
-			System.out.println("Process is already a candidate.");
+			EventLog.info("Process is already a candidate.");
 			return;
 		}
 		
 		if (candidateLevel > -1) {
-			System.out.println("Process already tried to be a candidate.");
+			EventLog.info("Process already tried to be a candidate.");
 			return;
 		}
 		
 		try {
-			links = new ArrayList<>(network.getIds());
-			links.remove(Integer.valueOf(id));
+			Set<Integer> ids = network.getIds();
+			links = new int[ids.size()];
+			linkCount = 0;
+			for (int other : ids) {
+				if (other != id) {
+					links[linkCount++] = other;
+				}
+			}
+
+			if (!randomize) {
+				Arrays.sort(links, 0, linkCount);
+				for (int i = 0, j = linkCount - 1; i < j; i++, j--) {
+					int swap = links[i];
+					links[i] = links[j];
+					links[j] = swap;
+				}
+			}
+			rnd = new Random(id);
 			isCandidate = true;
+
+			if (quiescent) {
+				quiescent = false;
+				Message wake = new Message(id, Constants.NETWORK,
+						Constants.KIND_WAKE_ROUND, 0, 0);
+				wake.body = Constants.WAKE_ROUND;
+				network.sendMessage(wake);
+			}
 		} catch (RemoteException e) {
-			e.printStackTrace();
+			EventLog.error("Unable to get the IDs of the network.", e);
 		}
 	}
 
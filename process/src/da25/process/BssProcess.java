@@ -1,10 +1,16 @@
 package da25.process;
 
 import java.rmi.RemoteException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import da25.base.Message;
 import da25.base.VectorClock;
+import da25.base.log.EventLog;
+import da25.base.metrics.Histogram;
+import da25.base.trace.Trace;
 
 /**
  * The concrete implementation of a process for Assignment 1:
@@ -15,53 +21,251 @@ import da25.base.VectorClock;
  * @author Casper Folkers
  * 
  */
-public class BssProcess extends Process {
-	private ArrayList<Message> buffer = new ArrayList<Message>();
+public class BssProcess extends Process implements BssProcessMBean {
+	/**
+	 * Buffered messages, indexed by the clock entry they are waiting for.
+	 * <p>
+	 * A message that can't be delivered yet is parked under the first entry
+	 * of the local clock that is still too small, together with the value that
+	 * entry has to reach. Entries of other processes only grow one step at a
+	 * time, each step being a delivery, so after every delivery only the
+	 * messages parked under that exact entry and value have to be checked
+	 * again, instead of the whole buffer.
+	 */
+	private HashMap<Long, BufferedMessage> buffer = new HashMap<>();
+
+	/**
+	 * Number of messages currently held in the buffer.
+	 */
+	private int bufferSize = 0;
+
+	/**
+	 * Largest number of messages ever held in the buffer at once.
+	 */
+	private int peakBufferSize = 0;
+
+	/**
+	 * Time spent in the buffer by delivered messages, in nanoseconds. It is
+	 * only updated while holding the clock, so a single stripe is enough.
+	 */
+	private final Histogram bufferTime = new Histogram(1);
+
+	/**
+	 * Messages that passed the causal check and are waiting to be delivered,
+	 * kept here to avoid recursion while releasing chains of messages.
+	 */
+	private ArrayDeque<Message> ready = new ArrayDeque<>();
+
+	/**
+	 * If true, outgoing messages only carry the clock entries changed since
+	 * the previous message sent by this process (Singhal-Kshemkalyani style).
+	 * <p>
+	 * The receiver doesn't need to rebuild the full clock: a message can only
+	 * pass the causal check once the previous message from the same sender
+	 * has been delivered, and the entries missing from the difference are
+	 * exactly those of that previous message, hence already covered by the
+	 * receiver's clock.
+	 */
+	public boolean compressClocks = false;
+
+	/**
+	 * A copy of the clock as it was when the last message was sent.
+	 */
+	private VectorClock lastSent = new VectorClock();
 
 	@Override
 	public void recieveMessage(Message message) throws RemoteException {
 		synchronized (clock) {
-			clock.increase(message.sender);
-			if (clock.greaterEqual(message.clock)) {
-				deliverMessage(message);
-
-				boolean newUpdate = true;
-				while (newUpdate) {
-					newUpdate = false;
-					for (int i = 0; i < buffer.size(); i++) {
-						Message nextMessage = buffer.get(i);
-						clock.increase(nextMessage.sender);
-						if (clock.greaterEqual(nextMessage.clock)) {
-							newUpdate = true;
-							deliverMessage(nextMessage);
-							buffer.remove(i);
-							i--;
-						} else {
-							clock.decrease(nextMessage.sender);
-						}
-					}
+			int unsatisfied = firstUnsatisfied(message, 0);
+			if (unsatisfied >= 0) {
+				EventLog.trace("{} put in buffer", message);
+				Trace.record(Trace.BUFFER, id, message.sender, message.sequence,
+						unsatisfied);
+				park(new BufferedMessage(message, unsatisfied));
+				bufferSize++;
+				if (bufferSize > peakBufferSize) {
+					peakBufferSize = bufferSize;
 				}
-			} else {
-				System.out.println(message + " put in buffer");
-				clock.decrease(message.sender);
-				buffer.add(message);
+				return;
+			}
+
+			ready.add(message);
+			while (!ready.isEmpty()) {
+				Message nextMessage = ready.poll();
+				clock.increase(nextMessage.sender);
+				Trace.record(Trace.DELIVER, id, nextMessage.sender,
+						nextMessage.sequence, nextMessage.kind);
+				deliverMessage(nextMessage);
+				release(nextMessage.sender);
 			}
 		}
 	}
 
+	@Override
+	public void recieveMessages(List<Message> messages) throws RemoteException {
+		synchronized (clock) {
+			super.recieveMessages(messages);
+		}
+	}
+
+	/**
+	 * With a direct transport, the message is sent once the clock is
+	 * released, see DirectTransport.send(); it can't be taken back any more
+	 * if some of its recipients are unreachable.
+	 */
 	@Override
 	public void sendMessage(int recipient, String body) {
+		DirectTransport transport = direct;
+		Message message;
 		synchronized (clock) {
 			clock.increase(id);
-			Message message = new Message(id, recipient,
-					new VectorClock(clock), body);
-			try {
-				network.sendMessage(message);
-			} catch (RemoteException e) {
-				clock.decrease(id);
-				System.out.println("Unable to send message " + message
-						+ ", because of: " + e.getMessage());
+			if (compressClocks) {
+				message = new Message(id, recipient,
+						clock.differenceFrom(lastSent), body);
+				message.deltaClock = true;
+			} else {
+				message = new Message(id, recipient, new VectorClock(clock),
+						body);
+			}
+
+			if (transport == null) {
+				try {
+					network.sendMessage(message);
+					lastSent.copyFrom(clock);
+				} catch (RemoteException e) {
+					clock.decrease(id);
+					EventLog.error("Unable to send message {}, because of: {}",
+							message, e.getMessage());
+				}
+				return;
+			}
+
+			lastSent.copyFrom(clock);
+		}
+
+		transport.send(message);
+	}
+
+	@Override
+	public int getBufferSize() {
+		synchronized (clock) {
+			return bufferSize;
+		}
+	}
+
+	@Override
+	public int getPeakBufferSize() {
+		synchronized (clock) {
+			return peakBufferSize;
+		}
+	}
+
+	@Override
+	public long getBufferedMessages() {
+		return bufferTime.getCount();
+	}
+
+	@Override
+	public double getBufferTimeMean() {
+		return bufferTime.getMean() / 1000;
+	}
+
+	@Override
+	public long getBufferTime99thPercentile() {
+		return TimeUnit.NANOSECONDS.toMicros(bufferTime.getPercentile(0.99));
+	}
+
+	@Override
+	public long getBufferTimeMax() {
+		return TimeUnit.NANOSECONDS.toMicros(bufferTime.getMax());
+	}
+
+	/**
+	 * The value a clock entry must reach before the message can be delivered:
+	 * the previous message from the same sender must have been delivered, and
+	 * everything else the sender had delivered before sending it.
+	 */
+	private static int required(Message message, int index) {
+		if (index == message.sender) {
+			return message.clock.get(index) - 1;
+		}
+
+		return message.clock.get(index);
+	}
+
+	/**
+	 * Looks for the first clock entry preventing the delivery of a message.
+	 * 
+	 * @param from
+	 *            The index to start from, all the previous ones are known to
+	 *            be already satisfied.
+	 * @return The index of the entry, or -1 if the message can be delivered.
+	 */
+	private int firstUnsatisfied(Message message, int from) {
+		int length = message.clock.length();
+		for (int i = from; i < length; i++) {
+			if (clock.get(i) < required(message, i)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static long key(int index, int value) {
+		return ((long) index << 32) | (value & 0xFFFFFFFFL);
+	}
+
+	private void park(BufferedMessage buffered) {
+		buffered.next = buffer.put(
+				key(buffered.waitingOn,
+						required(buffered.message, buffered.waitingOn)),
+				buffered);
+	}
+
+	/**
+	 * A clock entry has just been increased: checks again the messages waiting
+	 * for it, moving to the ready queue the ones that can now be delivered and
+	 * parking the others under their next unsatisfied entry.
+	 */
+	private void release(int index) {
+		if (bufferSize == 0) {
+			return;
+		}
+
+		BufferedMessage buffered = buffer.remove(key(index, clock.get(index)));
+		while (buffered != null) {
+			BufferedMessage next = buffered.next;
+			buffered.next = null;
+
+			int unsatisfied = firstUnsatisfied(buffered.message,
+					buffered.waitingOn);
+			if (unsatisfied >= 0) {
+				buffered.waitingOn = unsatisfied;
+				park(buffered);
+			} else {
+				bufferSize--;
+				bufferTime.record(System.nanoTime() - buffered.parkedAt);
+				ready.add(buffered.message);
 			}
+
+			buffered = next;
+		}
+	}
+
+	/**
+	 * A message in the buffer, linked to the other ones waiting for the same
+	 * clock entry to reach the same value.
+	 */
+	private static class BufferedMessage {
+		final Message message;
+		final long parkedAt = System.nanoTime();
+		int waitingOn;
+		BufferedMessage next;
+
+		BufferedMessage(Message message, int waitingOn) {
+			this.message = message;
+			this.waitingOn = waitingOn;
 		}
 	}
 }
@@ -0,0 +1,29 @@
+package da25.process;
+
+/**
+ * Metrics of a BSS process, exposed through JMX. Durations are in
+ * microseconds.
+ */
+public interface BssProcessMBean {
+	/**
+	 * @return The number of messages waiting in the buffer.
+	 */
+	public int getBufferSize();
+
+	/**
+	 * @return The largest number of messages ever waiting in the buffer at
+	 *         once.
+	 */
+	public int getPeakBufferSize();
+
+	/**
+	 * @return The number of messages delivered after waiting in the buffer.
+	 */
+	public long getBufferedMessages();
+
+	public double getBufferTimeMean();
+
+	public long getBufferTime99thPercentile();
+
+	public long getBufferTimeMax();
+}
@@ -1,5 +1,6 @@
 package da25.process;
 
+import java.net.InetSocketAddress;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -8,9 +9,12 @@ import java.rmi.server.UnicastRemoteObject;
 import da25.base.NetworkInterface;
 import da25.base.ProcessInterface;
 import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.base.metrics.MBeans;
+import da25.base.nio.NioLoop;
 
 /**
- * Main class for clients, holding RMI logic only.
+ * Main class for clients, holding RMI (or NIO transport) logic only.
  * 
  * @author Stefano Tribioli
  * @author Casper Folkers
@@ -19,48 +23,129 @@ import da25.base.exceptions.LockedException;
 public class Client {
 	public static Process process;
 
+	/**
+	 * Usage: Client (bss|ag) [compress] [direct [delay]] [nio [host[:port]]]
+	 * [shard index]
+	 * <p>
+	 * With "direct", data messages are sent straight to the other processes
+	 * (see DirectTransport), each one after a random delay up to the given
+	 * number of milliseconds, if any.
+	 * <p>
+	 * With "nio", the network is reached through the NIO transport instead of
+	 * RMI, by default on the local host and NioLoop.DEFAULT_PORT.
+	 * <p>
+	 * With "shard", the process registers with the given shard of a sharded
+	 * RMI network.
+	 * <p>
+	 * The amount of output is set with -Dda25.log=(off|error|info|trace), the
+	 * buffering and delivery events of the process are recorded with
+	 * -Dda25.trace=file.
+	 */
 	public static void main(String[] args) {
 		NetworkInterface network;
 
+		boolean compress = false;
+		long directDelay = -1;
+		InetSocketAddress nioAddress = null;
+		String binding = NetworkInterface.class.getCanonicalName();
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+			case "compress":
+				compress = true;
+				break;
+			case "direct":
+				directDelay = 0;
+				if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+					directDelay = Long.parseLong(args[++i]);
+				}
+				break;
+			case "nio":
+				String host = "localhost";
+				int port = NioLoop.DEFAULT_PORT;
+				if (i + 1 < args.length) {
+					String[] parts = args[++i].split(":");
+					host = parts[0];
+					if (parts.length > 1) {
+						port = Integer.parseInt(parts[1]);
+					}
+				}
+				nioAddress = new InetSocketAddress(host, port);
+				break;
+			case "shard":
+				binding = NetworkInterface.class.getCanonicalName() + "/"
+						+ args[++i];
+				break;
+			default:
+				EventLog.error("Unknown option: '{}'", args[i]);
+				return;
+			}
+		}
+
 		try {
-			Registry registry = LocateRegistry.getRegistry();
-			network = (NetworkInterface) registry.lookup(NetworkInterface.class
-					.getCanonicalName());
+			if (nioAddress != null) {
+				network = new NioNetworkStub(nioAddress);
+			} else {
+				Registry registry = LocateRegistry.getRegistry();
+				network = (NetworkInterface) registry.lookup(binding);
+			}
 		} catch (Exception e) {
-			System.out.println("Unable to init RMI environment.");
+			EventLog.error("Unable to init {} environment.",
+					nioAddress != null ? "NIO" : "RMI");
 			throw new RuntimeException(e);
 		}
 
 		switch (args[0]) {
 		case "bss":
-			process = new BssProcess();
+			BssProcess bssProcess = new BssProcess();
+			bssProcess.compressClocks = compress;
+			if (directDelay >= 0) {
+				bssProcess.direct = new DirectTransport(bssProcess,
+						directDelay);
+			}
+			process = bssProcess;
 			break;
 		case "ag":
 			process = new AgProcess();
+			if (directDelay >= 0) {
+				EventLog.error("Direct links are only available to bss processes.");
+				return;
+			}
 			break;
 		default:
-			System.out.println("No assignment specified.");
+			EventLog.error("No assignment specified.");
 			return;
 		}
 
 		try {
-			ProcessInterface stub = (ProcessInterface) UnicastRemoteObject
-					.exportObject(process, 0);
+			ProcessInterface stub;
+			if (nioAddress != null) {
+				/*
+				 * The NIO transport dispatches the network's calls to the
+				 * local object itself.
+				 */
+				stub = process;
+			} else {
+				stub = (ProcessInterface) UnicastRemoteObject.exportObject(
+						process, 0);
+			}
 
 			process.network = network;
 			try {
 				process.id = network.register(stub);
 			} catch (LockedException e) {
-				System.out.println("Unable to register: network is locked.");
+				EventLog.error("Unable to register: network is locked.");
 				throw new RuntimeException(e);
 			}
 		} catch (RemoteException e) {
-			System.out.println("Unable to register: RemoteException.");
+			EventLog.error("Unable to register: RemoteException.");
 			throw new RuntimeException(e);
 		}
 
-		System.out.println("Process " + process.id
-				+ " is registered in the network.");
+		if (MBeans.isStandardMBean(process)) {
+			MBeans.register(process, "type=Process,id=" + process.id);
+		}
+
+		EventLog.info("Process {} is registered in the network.", process.id);
 	}
 
 }
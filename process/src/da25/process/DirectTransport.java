@@ -0,0 +1,235 @@
+package da25.process;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import da25.base.Constants;
+import da25.base.Message;
+import da25.base.ProcessInterface;
+import da25.base.log.EventLog;
+
+/**
+ * Sends the data messages of a process straight to their recipients, taking
+ * the network out of the data path: a message costs one call instead of two,
+ * the network only handling registration, membership and control messages.
+ * <p>
+ * The references of the other processes are asked to the network on first
+ * use and kept. Broadcasts are expanded by the sender, over the IDs the
+ * network returned the first time one was sent, which is why direct links
+ * must only be used once the network is locked. Recipients the network
+ * can't hand out a reference for (processes of other shards, processes
+ * reached through NIO, or spawned by a network running in another VM) are
+ * sent their messages through the network as before.
+ * <p>
+ * With a maximum delay, every message is delivered after a random delay up
+ * to it, by threads shared by all the transports of the VM, so messages are
+ * reordered the way the dispatchers of the network would.
+ */
+public class DirectTransport {
+	/**
+	 * Threads delivering delayed messages, created on first use.
+	 */
+	private static ScheduledExecutorService delays = null;
+
+	private final Process process;
+
+	/**
+	 * Maximum delay of a message, in milliseconds, zero for messages to be
+	 * delivered right away by the sending thread.
+	 */
+	private final long maxDelay;
+
+	/**
+	 * Source of the delays, guarded by itself.
+	 */
+	private final Random rnd;
+
+	/**
+	 * References of the other processes, by ID, null for those only reached
+	 * through the network. Guarded by itself.
+	 */
+	private final HashMap<Integer, ProcessInterface> peers = new HashMap<>();
+
+	/**
+	 * IDs of all the processes, fetched on the first broadcast.
+	 */
+	private volatile int[] members = null;
+
+	private final AtomicLong sent = new AtomicLong();
+
+	/**
+	 * Number of delayed messages not delivered yet.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * @param maxDelay
+	 *            Maximum delay of a message in milliseconds, zero for no
+	 *            delay.
+	 */
+	public DirectTransport(Process process, long maxDelay) {
+		this.process = process;
+		this.maxDelay = maxDelay;
+		rnd = new Random();
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * @return The number of messages sent, counting every copy of a
+	 *         broadcast, including the ones sent through the network.
+	 */
+	public long getMessagesSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of delayed messages not delivered yet.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Sends a data message, expanding broadcasts. A message that can't be
+	 * delivered is logged and dropped, as the network does with the messages
+	 * it can't forward, since the other copies of a broadcast may already
+	 * have been delivered.
+	 * <p>
+	 * The caller must not hold its own lock: without delay, the message is
+	 * delivered by the calling thread, which may have to wait for the lock of
+	 * a recipient that is sending to it at the same time.
+	 */
+	public void send(Message message) {
+		if (message.recipient != Constants.BROADCAST) {
+			send(message.recipient, message);
+			return;
+		}
+
+		int[] ids;
+		try {
+			ids = members();
+		} catch (RemoteException e) {
+			EventLog.error("Unable to broadcast {}, because of: {}", message,
+					e.getMessage());
+			return;
+		}
+
+		for (int id : ids) {
+			if (id != process.id) {
+				send(id, message.forRecipient(id));
+			}
+		}
+	}
+
+	private void send(int recipient, final Message message) {
+		sent.incrementAndGet();
+
+		final ProcessInterface peer = peer(recipient);
+		if (peer == null) {
+			try {
+				process.network.sendMessage(message);
+			} catch (RemoteException e) {
+				EventLog.error("Unable to send message {}, because of: {}",
+						message, e.getMessage());
+			}
+			return;
+		}
+
+		if (maxDelay == 0) {
+			deliver(peer, message);
+			return;
+		}
+
+		long delay;
+		synchronized (rnd) {
+			delay = (long) (rnd.nextDouble() * maxDelay * 1000);
+		}
+		inFlight.incrementAndGet();
+		delays().schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					deliver(peer, message);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		}, delay, TimeUnit.MICROSECONDS);
+	}
+
+	private static void deliver(ProcessInterface peer, Message message) {
+		try {
+			peer.recieveMessage(message);
+			EventLog.trace("{} delivered directly.", message);
+		} catch (RemoteException e) {
+			EventLog.error("Unable to deliver message {}, because of: {}",
+					message, e.getMessage());
+		}
+	}
+
+	private int[] members() throws RemoteException {
+		int[] ids = members;
+		if (ids == null) {
+			Set<Integer> set = process.network.getIds();
+			ids = new int[set.size()];
+			int i = 0;
+			for (int id : set) {
+				ids[i++] = id;
+			}
+			members = ids;
+		}
+		return ids;
+	}
+
+	/**
+	 * @return The reference of a process, or null if it has to be reached
+	 *         through the network.
+	 */
+	private ProcessInterface peer(int id) {
+		synchronized (peers) {
+			if (peers.containsKey(id)) {
+				return peers.get(id);
+			}
+		}
+
+		ProcessInterface peer;
+		try {
+			peer = process.network.getProcess(id);
+		} catch (RemoteException e) {
+			EventLog.trace("No direct link to process {}: {}", id,
+					e.getMessage());
+			peer = null;
+		}
+
+		synchronized (peers) {
+			peers.put(id, peer);
+		}
+		return peer;
+	}
+
+	private static synchronized ScheduledExecutorService delays() {
+		if (delays == null) {
+			delays = new ScheduledThreadPoolExecutor(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Direct link");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return delays;
+	}
+}
@@ -0,0 +1,359 @@
+package da25.process;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import da25.base.Message;
+import da25.base.NetworkInterface;
+import da25.base.Outbox;
+import da25.base.ProcessInterface;
+import da25.base.RecipientSet;
+import da25.base.exceptions.DuplicateIDException;
+import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.base.nio.FrameHandler;
+import da25.base.nio.Frames;
+import da25.base.nio.NioConnection;
+import da25.base.nio.NioLoop;
+
+/**
+ * Client side representative of a network reached through the NIO transport.
+ * <p>
+ * Messages are sent one-way and pipelined, without waiting for the server.
+ * Only registration and getIds() wait for a reply. Calls coming from the
+ * network are executed on a single thread, in the order they were sent, so
+ * that the loop's thread is never blocked by the process.
+ */
+public class NioNetworkStub implements NetworkInterface, FrameHandler {
+	private final NioConnection connection;
+
+	/**
+	 * The local process, receiving the calls coming from the network.
+	 */
+	private volatile ProcessInterface process;
+
+	private final ExecutorService calls = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Replies received for pending requests, by request ID, guarded by
+	 * itself.
+	 */
+	private final HashMap<Integer, ByteBuffer> replies = new HashMap<>();
+
+	private int lastRequest = 0;
+
+	public NioNetworkStub(InetSocketAddress address) throws IOException {
+		NioLoop loop = new NioLoop(this, "NIO client");
+		connection = loop.connect(address);
+		loop.start();
+	}
+
+	@Override
+	public int register(ProcessInterface process) throws RemoteException,
+			LockedException {
+		try {
+			return register(process, 0);
+		} catch (DuplicateIDException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The process is not sent to the network: it receives the calls coming
+	 * through this connection.
+	 */
+	@Override
+	public int register(ProcessInterface process, int id)
+			throws RemoteException, LockedException, DuplicateIDException {
+		this.process = process;
+
+		ByteBuffer reply;
+		if (id > 0) {
+			reply = request(Frames.REGISTER_ID, id);
+		} else {
+			reply = request(Frames.REGISTER, 0);
+		}
+
+		switch (reply.get()) {
+		case Frames.STATUS_LOCKED:
+			throw new LockedException();
+		case Frames.STATUS_DUPLICATE:
+			throw new DuplicateIDException();
+		default:
+			return reply.getInt();
+		}
+	}
+
+	@Override
+	public Set<Integer> getIds() throws RemoteException {
+		ByteBuffer reply = request(Frames.GET_IDS, 0);
+		reply.get();
+
+		int count = reply.getInt();
+		HashSet<Integer> ids = new HashSet<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			ids.add(reply.getInt());
+		}
+		return ids;
+	}
+
+	/**
+	 * Processes reached through the NIO transport have no reference of their
+	 * own, so other processes are always reached through the network.
+	 */
+	@Override
+	public ProcessInterface getProcess(int id) {
+		return null;
+	}
+
+	@Override
+	public void sendMessage(Message message) throws RemoteException {
+		byte[] body = Frames.encodeBody(message);
+		try {
+			ByteBuffer out = connection.beginFrame(1 + Frames.messageSize(
+					message, body));
+			try {
+				out.put(Frames.SEND);
+				Frames.writeMessage(out, message, body);
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to send message", e);
+		}
+	}
+
+	@Override
+	public void multicast(Message message, RecipientSet recipients)
+			throws RemoteException {
+		byte[] body = Frames.encodeBody(message);
+		byte[] set = recipients.toBytes();
+		try {
+			ByteBuffer out = connection.beginFrame(1 + Frames.messageSize(
+					message, body) + 4 + set.length);
+			try {
+				out.put(Frames.MULTICAST);
+				Frames.writeMessage(out, message, body);
+				out.putInt(set.length);
+				out.put(set);
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to send message", e);
+		}
+	}
+
+	@Override
+	public void submitRound(Outbox outbox) throws RemoteException {
+		int count = outbox.size();
+		byte[][] bodies = new byte[count][];
+		byte[][] sets = new byte[count][];
+		int size = 1 + 4 + 1 + 4;
+		for (int i = 0; i < count; i++) {
+			Message message = outbox.getMessage(i);
+			bodies[i] = Frames.encodeBody(message);
+			size += 1 + Frames.messageSize(message, bodies[i]);
+			if (outbox.getRecipients(i) != null) {
+				sets[i] = outbox.getRecipients(i).toBytes();
+				size += 4 + sets[i].length;
+			}
+		}
+
+		try {
+			ByteBuffer out = connection.beginFrame(size);
+			try {
+				out.put(Frames.SUBMIT_ROUND);
+				out.putInt(outbox.sender);
+				out.put((byte) (outbox.quiescent ? 1 : 0));
+				out.putInt(count);
+				for (int i = 0; i < count; i++) {
+					out.put((byte) (sets[i] != null ? 1 : 0));
+					Frames.writeMessage(out, outbox.getMessage(i), bodies[i]);
+					if (sets[i] != null) {
+						out.putInt(sets[i].length);
+						out.put(sets[i]);
+					}
+				}
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to submit round", e);
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 * 
+	 * @param argument
+	 *            Only sent with REGISTER_ID.
+	 * @return The content of the reply, from the status on.
+	 */
+	private ByteBuffer request(byte operation, int argument)
+			throws RemoteException {
+		int request;
+		synchronized (replies) {
+			request = ++lastRequest;
+		}
+
+		try {
+			int size = operation == Frames.REGISTER_ID ? 1 + 4 + 4 : 1 + 4;
+			ByteBuffer out = connection.beginFrame(size);
+			try {
+				out.put(operation);
+				out.putInt(request);
+				if (operation == Frames.REGISTER_ID) {
+					out.putInt(argument);
+				}
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to send request", e);
+		}
+
+		synchronized (replies) {
+			while (!replies.containsKey(request)) {
+				if (connection.isClosed()) {
+					throw new RemoteException("Connection closed");
+				}
+
+				try {
+					replies.wait();
+				} catch (InterruptedException e) {
+					throw new RemoteException("Interrupted", e);
+				}
+			}
+
+			return replies.remove(request);
+		}
+	}
+
+	@Override
+	public void onFrame(NioConnection connection, ByteBuffer frame) {
+		byte operation = frame.get();
+		switch (operation) {
+		case Frames.REPLY:
+			int request = frame.getInt();
+			ByteBuffer reply = ByteBuffer.allocate(frame.remaining());
+			reply.put(frame);
+			reply.flip();
+			synchronized (replies) {
+				replies.put(request, reply);
+				replies.notifyAll();
+			}
+			return;
+		case Frames.START:
+			call(new Call() {
+				@Override
+				void perform() throws RemoteException {
+					process.start();
+				}
+			});
+			return;
+		case Frames.RECEIVE:
+			final Message message = Frames.readMessage(frame);
+			call(new Call() {
+				@Override
+				void perform() throws RemoteException {
+					process.recieveMessage(message);
+				}
+			});
+			return;
+		case Frames.RECEIVE_BATCH:
+			int count = frame.getInt();
+			final ArrayList<Message> messages = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				messages.add(Frames.readMessage(frame));
+			}
+			call(new Call() {
+				@Override
+				void perform() throws RemoteException {
+					process.recieveMessages(messages);
+				}
+			});
+			return;
+		case Frames.SEND_TEXT:
+			final int textRequest = frame.getInt();
+			final int recipient = frame.getInt();
+			byte[] bytes = new byte[frame.getInt()];
+			frame.get(bytes);
+			final String body = new String(bytes, StandardCharsets.UTF_8);
+			call(new Call() {
+				@Override
+				void perform() throws RemoteException {
+					try {
+						process.sendMessage(recipient, body);
+					} finally {
+						acknowledge(textRequest);
+					}
+				}
+			});
+			return;
+		case Frames.EXIT:
+			call(new Call() {
+				@Override
+				void perform() throws RemoteException {
+					process.exit();
+				}
+			});
+			return;
+		default:
+			EventLog.error("Unknown operation {}, closing connection.",
+					operation);
+			connection.close();
+		}
+	}
+
+	@Override
+	public void onClose(NioConnection connection) {
+		synchronized (replies) {
+			replies.notifyAll();
+		}
+	}
+
+	private void acknowledge(int request) throws RemoteException {
+		try {
+			ByteBuffer out = connection.beginFrame(1 + 4 + 1);
+			try {
+				out.put(Frames.REPLY);
+				out.putInt(request);
+				out.put(Frames.STATUS_OK);
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to acknowledge request", e);
+		}
+	}
+
+	private void call(Call call) {
+		calls.execute(call);
+	}
+
+	/**
+	 * A call coming from the network, to be performed on the local process.
+	 */
+	private static abstract class Call implements Runnable {
+		@Override
+		public void run() {
+			try {
+				perform();
+			} catch (RemoteException e) {
+				EventLog.error("Call from the network failed.", e);
+			}
+		}
+
+		abstract void perform() throws RemoteException;
+	}
+}
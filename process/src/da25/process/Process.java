@@ -1,11 +1,13 @@
 package da25.process;
 
 import java.rmi.RemoteException;
+import java.util.List;
 
 import da25.base.Message;
 import da25.base.NetworkInterface;
 import da25.base.ProcessInterface;
 import da25.base.VectorClock;
+import da25.base.log.EventLog;
 
 /**
  * Common prototype for a concrete Process, it has to be subclassed for each
@@ -22,6 +24,14 @@ public abstract class Process implements ProcessInterface {
 	public VectorClock clock = new VectorClock();
 	public NetworkInterface network;
 
+	/**
+	 * If not null, data messages are sent straight to their recipients
+	 * through this transport instead of the network. Only asynchronous
+	 * processes use it, the messages of synchronous ones having to wait for
+	 * the next round.
+	 */
+	public volatile DirectTransport direct = null;
+
 	@Override
 	public void start() {
 		return;
@@ -32,13 +42,24 @@ public abstract class Process implements ProcessInterface {
 		System.exit(0);
 	}
 
+	/**
+	 * This implementation simply receives the messages one by one, derived
+	 * classes should hold their lock around it to acquire it only once.
+	 */
+	@Override
+	public void recieveMessages(List<Message> messages) throws RemoteException {
+		for (Message message : messages) {
+			recieveMessage(message);
+		}
+	}
+
 	/**
 	 * A message is delivered from the local buffer for actual elaboration.
 	 * Since we are only showcasing control algorithms, the process simply
-	 * prints the event to the standard output.
+	 * logs the event.
 	 * 
 	 */
 	protected void deliverMessage(Message message) {
-		System.out.println("Delivered message: " + message);
+		EventLog.trace("Delivered message: {}", message);
 	}
 }
@@ -6,6 +6,7 @@ import java.util.Scanner;
 
 import da25.base.exceptions.DuplicateIDException;
 import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
 import da25.process.AgProcess;
 
 /**
@@ -33,8 +34,7 @@ public class AgNetwork extends SyncNetwork {
 				try {
 					((AgProcess) processes.get(candidateId)).startCandidate();
 				} catch (NullPointerException e) {
-					System.out
-							.println("Entered ID is not present in the network.");
+					EventLog.error("Entered ID is not present in the network.");
 				}
 				return true;
 			case "test1":
@@ -44,10 +44,10 @@ public class AgNetwork extends SyncNetwork {
 				return super.performCommand(scanner, command);
 			}
 		} catch (LockedException e) {
-			System.out.println("Unable to populate a non-empty network.");
+			EventLog.error("Unable to populate a non-empty network.");
 			return true;
 		} catch (Exception e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Command {} failed.", command, e);
 			return true;
 		}
 	}
@@ -1,13 +1,27 @@
 package da25.server;
 
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.Scanner;
 
+import da25.base.Constants;
+import da25.base.Message;
+import da25.base.ProcessInterface;
+import da25.base.RecipientSet;
+import da25.base.log.EventLog;
+import da25.process.DirectTransport;
 import da25.process.Process;
 
 /**
  * An instance of a network performing asynchronous message delivery. Messages
  * can be delivered automatically or waiting for user's directives.
+ * <p>
+ * Automatic delivery is performed by a pool of dispatcher threads, each one
+ * taking a random message from the queue and forwarding it without holding
+ * any lock, so that a slow recipient only holds up its own dispatcher and
+ * senders never wait for deliveries.
  * 
  * @author Stefano Tribioli
  * @author Casper Folkers
@@ -15,36 +29,86 @@ import da25.process.Process;
  */
 public class AsyncNetwork extends Network {
 	/**
-	 * A fixed amount of time to wait before dispatching the next message.
+	 * Default amount of time each dispatcher waits before dispatching the next
+	 * message.
 	 */
 	public static final long DISPATCH_DELAY = 100;
 
 	/**
-	 * A worker thread who regularly checks the message queue.
+	 * Amount of time, in milliseconds, each dispatcher waits after forwarding
+	 * a message. If zero, dispatchers forward messages as fast as recipients
+	 * can take them.
 	 */
-	protected Thread worker;
+	protected volatile long dispatchDelay = DISPATCH_DELAY;
+
+	/**
+	 * Number of dispatcher threads started by the "auto" command.
+	 */
+	protected int dispatchThreads = 1;
+
+	/**
+	 * If true, messages between the same pair of processes are delivered in
+	 * the order they were sent, and never concurrently.
+	 */
+	protected volatile boolean fifoLinks = false;
+
+	/**
+	 * Dispatcher threads regularly checking the message queue, null if they
+	 * are not running.
+	 */
+	protected Thread[] dispatchers = null;
+
+	/**
+	 * Links, as returned by linkKey(), with a message being forwarded by a
+	 * dispatcher. Only used with FIFO links, guarded by the queue.
+	 */
+	private HashSet<Long> linksInFlight = new HashSet<>();
+
+	/**
+	 * Source of randomness for picking the next message to dispatch and for
+	 * the delays of simulations. Runs can be repeated by seeding it with the
+	 * "seed" command.
+	 */
+	protected Random rnd = new Random();
+
+	/**
+	 * Replay forwarding the messages in place of the dispatchers, null if no
+	 * trace is being replayed.
+	 */
+	protected volatile Replay replay = null;
+
+	/**
+	 * Maximum delay, in milliseconds, of the messages local processes send
+	 * each other directly (see DirectTransport), or -1 if they send them
+	 * through the network.
+	 */
+	protected long directDelay = -1;
 
 	public AsyncNetwork(Class<? extends Process> processClass) {
 		super(processClass);
+	}
 
-		worker = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				while (true) {
-					synchronized (queue) {
-						if (!queue.isEmpty()) {
-							Random rnd = new Random();
-							forwardMessage(rnd.nextInt(queue.size()));
-						}
-					}
+	@Override
+	protected void configureProcess(Process process) {
+		process.direct = directDelay >= 0 ? new DirectTransport(process,
+				directDelay) : null;
+	}
 
-					try {
-						Thread.sleep(DISPATCH_DELAY);
-					} catch (InterruptedException e) {
-					}
-				}
+	/**
+	 * Makes local processes send their data messages directly, or through the
+	 * network again.
+	 * 
+	 * @param maxDelay
+	 *            The maximum delay of direct messages in milliseconds, or -1
+	 *            to send them through the network.
+	 */
+	protected void setDirectLinks(long maxDelay) {
+		directDelay = maxDelay;
+		for (ProcessInterface process : processes.values()) {
+			if (process instanceof Process) {
+				configureProcess((Process) process);
 			}
-		});
+		}
 	}
 
 	@Override
@@ -63,27 +127,278 @@ public class AsyncNetwork extends Network {
 			forwardAllRandomly();
 			return true;
 		case "auto":
-			worker.start();
+			startDispatchers();
+			return true;
+		case "stop":
+			stopDispatchers();
+			return true;
+		case "threads":
+			System.out.println("Enter number of dispatcher threads:");
+			dispatchThreads = Math.max(1, Integer.parseInt(scanner.nextLine()));
+			return true;
+		case "delay":
+			System.out.println("Enter dispatch delay in milliseconds:");
+			dispatchDelay = Math.max(0, Long.parseLong(scanner.nextLine()));
+			return true;
+		case "fifo":
+			fifoLinks = !fifoLinks;
+			EventLog.info("FIFO links are now {}.", fifoLinks ? "on" : "off");
+			return true;
+		case "seed":
+			System.out.println("Enter random seed:");
+			rnd = new Random(Long.parseLong(scanner.nextLine().trim()));
+			return true;
+		case "replay":
+			System.out.println("Enter trace file"
+					+ " (or nothing to stop replaying):");
+			String path = scanner.nextLine().trim();
+			if (path.isEmpty()) {
+				stopReplay();
+			} else {
+				try {
+					startReplay(path);
+				} catch (IOException e) {
+					EventLog.error("Unable to replay trace {}", path, e);
+				}
+			}
+			return true;
+		case "direct":
+			System.out.println("Enter maximum delay of direct links in"
+					+ " milliseconds (or -1 to send through the network):");
+			setDirectLinks(Math.max(-1, Long.parseLong(scanner.nextLine()
+					.trim())));
+			EventLog.info("Direct links are now {} for local processes.",
+					directDelay >= 0 ? "on" : "off");
+			return true;
+		case "sim":
+			System.out.println("Enter delay model (constant:ms, uniform:min:max"
+					+ " or exponential:ms):");
+			try {
+				simulate(DelayModel.parse(scanner.nextLine()));
+			} catch (IllegalArgumentException e) {
+				EventLog.error(e.getMessage());
+			}
 			return true;
 		default:
 			return super.performCommand(scanner, command);
 		}
 	}
 
+	@Override
+	public void sendMessage(Message message) throws RemoteException {
+		super.sendMessage(message);
+
+		Replay current = replay;
+		if (current != null && message.recipient != Constants.NETWORK) {
+			current.sent();
+			if (current.advance()) {
+				stopReplay();
+			}
+		}
+	}
+
+	@Override
+	public void multicast(Message message, RecipientSet recipients)
+			throws RemoteException {
+		super.multicast(message, recipients);
+
+		Replay current = replay;
+		if (current != null) {
+			current.sent();
+			if (current.advance()) {
+				stopReplay();
+			}
+		}
+	}
+
+	/**
+	 * Starts replaying a trace (see Replay). Dispatcher threads are stopped
+	 * and messages are numbered from scratch, so the workload of the recorded
+	 * run must be started afterwards.
+	 */
+	protected void startReplay(String path) throws IOException {
+		stopReplay();
+		stopDispatchers();
+
+		Replay newReplay = new Replay(this, path);
+		resetSequences();
+		sequenceMessages = true;
+		replay = newReplay;
+		EventLog.info("Replaying trace {}", path);
+	}
+
+	/**
+	 * Stops replaying, if a trace is being replayed, leaving the messages not
+	 * forwarded yet in the queue.
+	 */
+	protected void stopReplay() {
+		Replay current = replay;
+		if (current != null) {
+			replay = null;
+			sequenceMessages = false;
+			current.finish();
+		}
+	}
+
+	/**
+	 * Starts the dispatcher threads, if they are not running yet.
+	 */
+	synchronized protected void startDispatchers() {
+		if (dispatchers != null) {
+			return;
+		}
+
+		dispatchers = new Thread[dispatchThreads];
+		for (int i = 0; i < dispatchers.length; i++) {
+			dispatchers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, "Dispatcher " + i);
+			dispatchers[i].setDaemon(true);
+			dispatchers[i].start();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		stopDispatchers();
+		super.shutdown();
+	}
+
+	/**
+	 * Stops the dispatcher threads, waiting for the messages they are
+	 * forwarding to be delivered.
+	 */
+	synchronized protected void stopDispatchers() {
+		if (dispatchers == null) {
+			return;
+		}
+
+		for (Thread dispatcher : dispatchers) {
+			dispatcher.interrupt();
+		}
+
+		for (Thread dispatcher : dispatchers) {
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		dispatchers = null;
+	}
+
+	/**
+	 * Body of a dispatcher thread.
+	 */
+	private void dispatch() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				boolean fifo = fifoLinks;
+				Message message = takeMessage(fifo);
+				if (message == null) {
+					if (queue.isEmpty()) {
+						queue.awaitArrival(DISPATCH_DELAY);
+					} else {
+						/*
+						 * All the sampled links are being served by other
+						 * dispatchers, which will be done shortly.
+						 */
+						Thread.sleep(1);
+					}
+					continue;
+				}
+
+				try {
+					forwardMessage(message);
+				} finally {
+					if (fifo) {
+						synchronized (queue) {
+							linksInFlight.remove(linkKey(message));
+						}
+					}
+				}
+
+				if (dispatchDelay > 0) {
+					Thread.sleep(dispatchDelay);
+				}
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Picks the next message to be forwarded by a dispatcher.
+	 * <p>
+	 * With FIFO links (the value of fifoLinks must be passed, so that it
+	 * doesn't change under the dispatcher's feet), the random pick only
+	 * chooses the link, and the oldest message on that link is taken instead.
+	 * Links already being served by another dispatcher are skipped.
+	 * 
+	 * @return The message, already removed from the queue, or null if there
+	 *         is nothing that can be forwarded right now.
+	 */
+	private Message takeMessage(boolean fifo) {
+		synchronized (queue) {
+			if (queue.isEmpty()) {
+				return null;
+			}
+
+			if (!fifo) {
+				return queue.removeRandom(rnd);
+			}
+
+			for (int attempt = 0; attempt < dispatchThreads * 2; attempt++) {
+				Message sample = queue.peekRandom(rnd);
+				if (linksInFlight.add(linkKey(sample))) {
+					return queue.removeOldest(sample.sender, sample.recipient);
+				}
+			}
+
+			return null;
+		}
+	}
+
+	private static long linkKey(Message message) {
+		return ((long) message.sender << 32)
+				| (message.recipient & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Delivers all the queued messages, and the messages they cause, in
+	 * virtual time (see Simulation). Dispatcher threads are stopped first.
+	 * 
+	 * @return The simulation, once no event is left.
+	 */
+	protected Simulation simulate(DelayModel delays) {
+		stopDispatchers();
+
+		Simulation simulation = new Simulation(this, delays, rnd, fifoLinks);
+		long start = System.nanoTime();
+		simulation.run();
+		EventLog.info("Simulated {} deliveries in {} ms of virtual time"
+				+ " ({} ms of wall time).",
+				simulation.getEventsExecuted(), simulation.now() / 1000000,
+				(System.nanoTime() - start) / 1000000);
+		return simulation;
+	}
+
 	protected void forwardSingleRandomly() {
 		synchronized (queue) {
 			if (!queue.isEmpty()) {
-				Random rnd = new Random();
-				forwardMessage(rnd.nextInt(queue.size()));
+				forwardMessage(queue.removeRandom(rnd));
 			}
 		}
 	}
 
 	protected void forwardAllRandomly() {
 		synchronized (queue) {
-			Random rnd = new Random();
 			while (!queue.isEmpty()) {
-				forwardMessage(rnd.nextInt(queue.size()));
+				forwardMessage(queue.removeRandom(rnd));
 			}
 		}
 	}
@@ -1,14 +1,20 @@
 package da25.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.rmi.RemoteException;
 import java.util.Random;
 import java.util.Scanner;
 
 import da25.base.Constants;
+import da25.base.Message;
 import da25.base.ProcessInterface;
 import da25.base.exceptions.DuplicateIDException;
 import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
 import da25.process.BssProcess;
+import da25.process.Process;
 
 /**
  * The actual network for assignment 1, complete with a test suite.
@@ -18,10 +24,22 @@ import da25.process.BssProcess;
  * 
  */
 public class BssNetwork extends AsyncNetwork {
+	/**
+	 * If true, locally spawned processes attach to their messages only the
+	 * clock entries changed since their previous message.
+	 */
+	protected boolean compressClocks = false;
+
 	public BssNetwork() {
 		super(BssProcess.class);
 	}
 
+	@Override
+	protected void configureProcess(Process process) {
+		super.configureProcess(process);
+		((BssProcess) process).compressClocks = compressClocks;
+	}
+
 	@Override
 	protected boolean performCommand(Scanner scanner, String command) {
 		try {
@@ -44,14 +62,27 @@ public class BssNetwork extends AsyncNetwork {
 			case "test6":
 				testCase6();
 				return true;
+			case "test7":
+				testCase7();
+				return true;
+			case "compress":
+				compressClocks = !compressClocks;
+				for (ProcessInterface process : processes.values()) {
+					if (process instanceof BssProcess) {
+						((BssProcess) process).compressClocks = compressClocks;
+					}
+				}
+				EventLog.info("Compressed clocks are now {} for local processes.",
+						compressClocks ? "on" : "off");
+				return true;
 			default:
 				return super.performCommand(scanner, command);
 			}
 		} catch (LockedException e) {
-			System.out.println("Unable to populate a non-empty network.");
+			EventLog.error("Unable to populate a non-empty network.");
 			return true;
 		} catch (Exception e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Command {} failed.", command, e);
 			return true;
 		}
 	}
@@ -73,7 +104,7 @@ public class BssNetwork extends AsyncNetwork {
 			forwardMessage(0);
 			forwardMessage(0);
 		} catch (RemoteException e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Test case failed.", e);
 		}
 	}
 
@@ -101,8 +132,7 @@ public class BssNetwork extends AsyncNetwork {
 			populateNetwork(5);
 		} else {
 			if (!locked || processes.size() != 5) {
-				System.out
-						.println("Test case 2 with autoSpawn turned off expects to find a locked network with five processes.");
+				EventLog.error("Test case 2 with autoSpawn turned off expects to find a locked network with five processes.");
 				throw new RuntimeException();
 			}
 		}
@@ -141,7 +171,7 @@ public class BssNetwork extends AsyncNetwork {
 
 			forwardMessage(0);
 		} catch (RemoteException e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Test case failed.", e);
 		}
 	}
 
@@ -173,7 +203,7 @@ public class BssNetwork extends AsyncNetwork {
 				}
 			}
 		} catch (RemoteException e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Test case failed.", e);
 		}
 	}
 
@@ -214,7 +244,7 @@ public class BssNetwork extends AsyncNetwork {
 				}
 			}
 		} catch (RemoteException e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Test case failed.", e);
 		}
 	}
 
@@ -236,11 +266,11 @@ public class BssNetwork extends AsyncNetwork {
 	 */
 	private void testCase6() throws LockedException, DuplicateIDException {
 		if (!locked) {
-			System.out.println("Test case 6 expects to find a locked network");
+			EventLog.error("Test case 6 expects to find a locked network");
 			throw new RuntimeException();
 		}
 
-		worker.start();
+		startDispatchers();
 
 		try {
 			for (int i = 1; i <= 5; i++) {
@@ -256,4 +286,87 @@ public class BssNetwork extends AsyncNetwork {
 		} catch (InterruptedException e) {
 		}
 	}
+
+	/**
+	 * Test case 7: comparison between full and compressed clocks on the wire.
+	 * <p>
+	 * The same workload runs on two fresh local networks of 100 processes,
+	 * the first one attaching full clocks and the second one only their
+	 * differences. Every process sends a first broadcast, so that all clock
+	 * entries are set, then five random processes send twenty broadcasts
+	 * each. After every broadcast the queue is flushed in random order. The
+	 * messages of the second phase are serialized as RMI would, so that the
+	 * average size and the throughput of both encodings can be compared.
+	 */
+	private void testCase7() throws LockedException, DuplicateIDException,
+			RemoteException {
+		int clientsCount = 100;
+		int sendersCount = 5;
+		int broadcastsCount = 20;
+
+		long[] bytes = new long[2];
+		long[] messages = new long[2];
+		long[] elapsed = new long[2];
+
+		for (int mode = 0; mode < 2; mode++) {
+			BssNetwork network = new BssNetwork();
+			network.compressClocks = mode == 1;
+			network.populateNetwork(clientsCount);
+
+			Random rnd = new Random(clientsCount);
+			int[] senders = new int[sendersCount];
+			for (int i = 0; i < sendersCount; i++) {
+				senders[i] = rnd.nextInt(clientsCount) + 1;
+			}
+
+			for (int sender = 1; sender <= clientsCount; sender++) {
+				network.processes.get(sender).sendMessage(
+						Constants.BROADCAST, "Hello from " + sender);
+				network.forwardAllRandomly();
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < broadcastsCount; i++) {
+				for (int sender : senders) {
+					network.processes.get(sender).sendMessage(
+							Constants.BROADCAST, "Broadcast " + i);
+
+					synchronized (network.queue) {
+						while (!network.queue.isEmpty()) {
+							int index = rnd.nextInt(network.queue.size());
+							bytes[mode] += serializedSize(network.queue
+									.get(index));
+							messages[mode]++;
+							network.forwardMessage(index);
+						}
+					}
+				}
+			}
+			elapsed[mode] = System.nanoTime() - start;
+		}
+
+		for (int mode = 0; mode < 2; mode++) {
+			EventLog.info("{} clocks: {} messages, {} bytes per message, "
+					+ "{} messages per second.", mode == 0 ? "Full"
+					: "Compressed", messages[mode], bytes[mode]
+					/ messages[mode], messages[mode] * 1000000000L
+					/ elapsed[mode]);
+		}
+	}
+
+	/**
+	 * @return The size of a message serialized on its own, as it happens for
+	 *         every RMI call.
+	 */
+	private static int serializedSize(Message message) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(message);
+			out.close();
+			return bytes.size();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 }
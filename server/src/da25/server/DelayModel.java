@@ -0,0 +1,121 @@
+package da25.server;
+
+import java.util.Random;
+
+import da25.base.Message;
+
+/**
+ * Distribution of the delays of messages in a simulation, drawn independently
+ * for every message.
+ */
+public abstract class DelayModel {
+	/**
+	 * @param message
+	 *            The message being delayed, for models depending on the link.
+	 * @param rnd
+	 *            The seeded source of randomness of the simulation, the only
+	 *            one a model may use.
+	 * @return The delay, in nanoseconds of virtual time, never negative.
+	 */
+	public abstract long next(Message message, Random rnd);
+
+	/**
+	 * Every message takes exactly the given time.
+	 */
+	public static DelayModel constant(double millis) {
+		final long delay = toNanos(millis);
+		return new DelayModel() {
+			@Override
+			public long next(Message message, Random rnd) {
+				return delay;
+			}
+
+			@Override
+			public String toString() {
+				return "constant:" + delay / 1e6;
+			}
+		};
+	}
+
+	/**
+	 * Delays are uniformly distributed between the given bounds.
+	 */
+	public static DelayModel uniform(double minMillis, double maxMillis) {
+		final long min = toNanos(minMillis);
+		final long range = toNanos(maxMillis) - min;
+		if (range < 0) {
+			throw new IllegalArgumentException("Empty delay range");
+		}
+		return new DelayModel() {
+			@Override
+			public long next(Message message, Random rnd) {
+				return min + (long) (rnd.nextDouble() * range);
+			}
+
+			@Override
+			public String toString() {
+				return "uniform:" + min / 1e6 + ":" + (min + range) / 1e6;
+			}
+		};
+	}
+
+	/**
+	 * Delays are exponentially distributed with the given mean, so most
+	 * messages are fast and a few are very late.
+	 */
+	public static DelayModel exponential(double meanMillis) {
+		final double mean = toNanos(meanMillis);
+		return new DelayModel() {
+			@Override
+			public long next(Message message, Random rnd) {
+				return (long) (-mean * Math.log(1 - rnd.nextDouble()));
+			}
+
+			@Override
+			public String toString() {
+				return "exponential:" + mean / 1e6;
+			}
+		};
+	}
+
+	/**
+	 * Parses a model written as its name followed by its parameters in
+	 * milliseconds, separated by colons: "constant:100", "uniform:50:150" or
+	 * "exponential:100".
+	 * 
+	 * @throws IllegalArgumentException
+	 *             The model is unknown or its parameters are wrong.
+	 */
+	public static DelayModel parse(String spec) {
+		String[] parts = spec.trim().split(":");
+		try {
+			switch (parts[0]) {
+			case "constant":
+				if (parts.length == 2) {
+					return constant(Double.parseDouble(parts[1]));
+				}
+				break;
+			case "uniform":
+				if (parts.length == 3) {
+					return uniform(Double.parseDouble(parts[1]),
+							Double.parseDouble(parts[2]));
+				}
+				break;
+			case "exponential":
+				if (parts.length == 2) {
+					return exponential(Double.parseDouble(parts[1]));
+				}
+				break;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Invalid delay model: " + spec);
+	}
+
+	private static long toNanos(double millis) {
+		if (!(millis >= 0)) {
+			throw new IllegalArgumentException("Negative delay: " + millis);
+		}
+		return (long) (millis * 1e6);
+	}
+}
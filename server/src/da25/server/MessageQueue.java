@@ -0,0 +1,473 @@
+package da25.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import da25.base.Message;
+import da25.base.RecipientSet;
+
+/**
+ * The queue of messages waiting to be dispatched by a network.
+ * <p>
+ * Senders only append envelopes to a lock-free inbox, so they never wait for
+ * the dispatcher, which holds the queue's monitor while forwarding, nor for
+ * each other. A broadcast is kept as a single envelope plus the set of its
+ * recipients, and it is expanded into one message per recipient only when
+ * the dispatcher looks at the queue. All the other methods must be called by
+ * the dispatcher while synchronized on the queue.
+ * <p>
+ * Every queued message is at the same time in a dense array (for uniformly
+ * random removal in constant time), in a doubly linked list in order of
+ * arrival (for FIFO removal in constant time) and in a doubly linked list per
+ * recipient (for per-recipient views).
+ */
+public class MessageQueue implements Iterable<Message> {
+	/**
+	 * All queued messages, in no particular order, the first count being
+	 * used. Each node knows its own position.
+	 */
+	private Node[] slots = new Node[16];
+
+	private int count = 0;
+
+	/**
+	 * Oldest and newest queued messages.
+	 */
+	private Node head, tail;
+
+	/**
+	 * Queued messages of every recipient, recipients being in order of first
+	 * appearance. A lane is dropped as soon as it is empty.
+	 */
+	private LinkedHashMap<Integer, Lane> lanes = new LinkedHashMap<>();
+
+	/**
+	 * Envelopes appended by senders and not yet expanded.
+	 */
+	private final ConcurrentLinkedQueue<Envelope> inbox = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Monitor the dispatchers waiting for arrivals wait on.
+	 */
+	private final Object arrivals = new Object();
+
+	/**
+	 * Number of threads waiting for arrivals, only changed while synchronized
+	 * on arrivals. Senders only take that lock to wake them up.
+	 */
+	private volatile int waiting = 0;
+
+	/**
+	 * Appends a message addressed to a single recipient.
+	 */
+	public void add(Message message) {
+		inbox.offer(new Envelope(message, null));
+		if (waiting > 0) {
+			synchronized (arrivals) {
+				arrivals.notify();
+			}
+		}
+	}
+
+	/**
+	 * Appends a broadcast message in constant time, whatever the number of
+	 * recipients.
+	 * 
+	 * @param message
+	 *            The envelope, shared by all the recipients and never
+	 *            modified.
+	 * @param recipients
+	 *            The sorted IDs of the recipients. The array is not copied, so
+	 *            it must not change afterwards. The sender is skipped if
+	 *            present.
+	 */
+	public void addBroadcast(Message message, int[] recipients) {
+		addMulticast(message, RecipientSet.ofSorted(recipients));
+	}
+
+	/**
+	 * Appends a multicast message in constant time, whatever the number of
+	 * recipients.
+	 * 
+	 * @param message
+	 *            The envelope, shared by all the recipients and never
+	 *            modified.
+	 * @param recipients
+	 *            The recipients, the sender being skipped if present.
+	 */
+	public void addMulticast(Message message, RecipientSet recipients) {
+		inbox.offer(new Envelope(message, recipients));
+		if (waiting > 0) {
+			synchronized (arrivals) {
+				arrivals.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until a sender appends a message or the timeout expires, returning
+	 * immediately if messages were appended since the last look at the queue.
+	 * It must not be called while synchronized on the queue.
+	 * <p>
+	 * The waiting thread is counted before looking at the inbox, and senders
+	 * look at the count after appending, so either the thread sees the new
+	 * envelope or the sender sees the thread and wakes it up.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait, in milliseconds.
+	 */
+	public void awaitArrival(long timeout) throws InterruptedException {
+		synchronized (arrivals) {
+			waiting++;
+			try {
+				if (inbox.isEmpty()) {
+					arrivals.wait(timeout);
+				}
+			} finally {
+				waiting--;
+			}
+		}
+	}
+
+	synchronized public int size() {
+		expand();
+		return count;
+	}
+
+	synchronized public boolean isEmpty() {
+		expand();
+		return count == 0;
+	}
+
+	/**
+	 * @param index
+	 *            Position in order of arrival. Reaching it takes time linear in
+	 *            the distance from the nearest end of the queue.
+	 */
+	synchronized public Message get(int index) {
+		expand();
+		return nodeAt(index).message;
+	}
+
+	/**
+	 * @param index
+	 *            Position in order of arrival. Reaching it takes time linear in
+	 *            the distance from the nearest end of the queue.
+	 */
+	synchronized public Message remove(int index) {
+		expand();
+		Node node = nodeAt(index);
+		unlink(node);
+		return node.message;
+	}
+
+	/**
+	 * Removes the oldest message in constant time.
+	 */
+	synchronized public Message removeFirst() {
+		expand();
+		if (head == null) {
+			throw new NoSuchElementException();
+		}
+
+		Node node = head;
+		unlink(node);
+		return node.message;
+	}
+
+	/**
+	 * Removes a message chosen uniformly at random, in constant time.
+	 */
+	synchronized public Message removeRandom(Random rnd) {
+		expand();
+		if (count == 0) {
+			throw new NoSuchElementException();
+		}
+
+		Node node = slots[rnd.nextInt(count)];
+		unlink(node);
+		return node.message;
+	}
+
+	/**
+	 * Returns a message chosen uniformly at random, without removing it.
+	 */
+	synchronized public Message peekRandom(Random rnd) {
+		expand();
+		if (count == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return slots[rnd.nextInt(count)].message;
+	}
+
+	/**
+	 * Removes the oldest message on a link. It takes time linear in the number
+	 * of messages queued for the recipient before it.
+	 * 
+	 * @return The message, or null if no message is queued on the link.
+	 */
+	synchronized public Message removeOldest(int sender, int recipient) {
+		expand();
+		Lane lane = lanes.get(recipient);
+		if (lane == null) {
+			return null;
+		}
+
+		for (Node node = lane.head; node != null; node = node.nextInLane) {
+			if (node.message.sender == sender) {
+				unlink(node);
+				return node.message;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return The number of messages queued for a recipient.
+	 */
+	synchronized public int size(int recipient) {
+		expand();
+		Lane lane = lanes.get(recipient);
+		return lane == null ? 0 : lane.size;
+	}
+
+	/**
+	 * Removes all the messages queued for a recipient.
+	 * 
+	 * @return The messages, in order of arrival.
+	 */
+	synchronized public List<Message> removeAll(int recipient) {
+		expand();
+		Lane lane = lanes.get(recipient);
+		if (lane == null) {
+			return new ArrayList<>(1);
+		}
+
+		ArrayList<Message> batch = new ArrayList<>(lane.size + 1);
+		while (lane.head != null) {
+			batch.add(lane.head.message);
+			unlink(lane.head);
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Empties the queue, grouping its messages by recipient.
+	 * 
+	 * @return The batches of messages for each recipient, in order of first
+	 *         appearance in the queue. Within every batch, messages keep the
+	 *         order of arrival.
+	 */
+	synchronized public LinkedHashMap<Integer, List<Message>> removeAllByRecipient() {
+		expand();
+		LinkedHashMap<Integer, List<Message>> batches = new LinkedHashMap<>();
+
+		for (Lane lane : lanes.values()) {
+			ArrayList<Message> batch = new ArrayList<>(lane.size + 1);
+			for (Node node = lane.head; node != null; node = node.nextInLane) {
+				batch.add(node.message);
+			}
+			batches.put(lane.recipient, batch);
+		}
+
+		Arrays.fill(slots, 0, count, null);
+		count = 0;
+		head = tail = null;
+		lanes.clear();
+
+		return batches;
+	}
+
+	/**
+	 * Empties the queue, dropping the envelopes still in the inbox without
+	 * expanding them.
+	 */
+	synchronized public void clear() {
+		inbox.clear();
+		Arrays.fill(slots, 0, count, null);
+		count = 0;
+		head = tail = null;
+		lanes.clear();
+	}
+
+	/**
+	 * Iterates over the queued messages in order of arrival. The queue must
+	 * not be modified during the iteration.
+	 */
+	@Override
+	synchronized public Iterator<Message> iterator() {
+		expand();
+		return new Iterator<Message>() {
+			private Node next = head;
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Message next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+
+				Message message = next.message;
+				next = next.next;
+				return message;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Moves the pending envelopes into the queue, creating the per-recipient
+	 * messages of broadcasts.
+	 */
+	private void expand() {
+		Envelope envelope;
+		while ((envelope = inbox.poll()) != null) {
+			if (envelope.recipients == null) {
+				link(envelope.message);
+			} else {
+				int size = envelope.recipients.size();
+				for (int i = 0; i < size; i++) {
+					int recipient = envelope.recipients.get(i);
+					if (recipient != envelope.message.sender) {
+						link(envelope.message.forRecipient(recipient));
+					}
+				}
+			}
+		}
+	}
+
+	private void link(Message message) {
+		Node node = new Node(message);
+
+		if (count == slots.length) {
+			slots = Arrays.copyOf(slots, count * 2);
+		}
+		node.slot = count;
+		slots[count++] = node;
+
+		node.previous = tail;
+		if (tail == null) {
+			head = node;
+		} else {
+			tail.next = node;
+		}
+		tail = node;
+
+		Lane lane = lanes.get(message.recipient);
+		if (lane == null) {
+			lane = new Lane(message.recipient);
+			lanes.put(message.recipient, lane);
+		}
+		node.previousInLane = lane.tail;
+		if (lane.tail == null) {
+			lane.head = node;
+		} else {
+			lane.tail.nextInLane = node;
+		}
+		lane.tail = node;
+		lane.size++;
+	}
+
+	private void unlink(Node node) {
+		Node last = slots[--count];
+		slots[node.slot] = last;
+		last.slot = node.slot;
+		slots[count] = null;
+
+		if (node.previous == null) {
+			head = node.next;
+		} else {
+			node.previous.next = node.next;
+		}
+		if (node.next == null) {
+			tail = node.previous;
+		} else {
+			node.next.previous = node.previous;
+		}
+
+		Lane lane = lanes.get(node.message.recipient);
+		if (node.previousInLane == null) {
+			lane.head = node.nextInLane;
+		} else {
+			node.previousInLane.nextInLane = node.nextInLane;
+		}
+		if (node.nextInLane == null) {
+			lane.tail = node.previousInLane;
+		} else {
+			node.nextInLane.previousInLane = node.previousInLane;
+		}
+		if (--lane.size == 0) {
+			lanes.remove(lane.recipient);
+		}
+	}
+
+	private Node nodeAt(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ count);
+		}
+
+		Node node;
+		if (index < count / 2) {
+			node = head;
+			for (int i = 0; i < index; i++) {
+				node = node.next;
+			}
+		} else {
+			node = tail;
+			for (int i = count - 1; i > index; i--) {
+				node = node.previous;
+			}
+		}
+
+		return node;
+	}
+
+	private static class Node {
+		final Message message;
+		int slot;
+		Node previous, next;
+		Node previousInLane, nextInLane;
+
+		Node(Message message) {
+			this.message = message;
+		}
+	}
+
+	private static class Lane {
+		final int recipient;
+		Node head, tail;
+		int size = 0;
+
+		Lane(int recipient) {
+			this.recipient = recipient;
+		}
+	}
+
+	private static class Envelope {
+		final Message message;
+		final RecipientSet recipients;
+
+		Envelope(Message message, RecipientSet recipients) {
+			this.message = message;
+			this.recipients = recipients;
+		}
+	}
+}
@@ -1,24 +1,42 @@
 package da25.server;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import da25.base.Constants;
 import da25.base.Message;
 import da25.base.NetworkInterface;
+import da25.base.Outbox;
 import da25.base.ProcessInterface;
+import da25.base.RecipientSet;
 import da25.base.exceptions.DuplicateIDException;
 import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.base.metrics.MBeans;
+import da25.base.trace.Trace;
 import da25.process.Process;
 
 /**
  * Singleton simulating a generic network and keeping track of all running
  * processes.
+ * <p>
+ * Registrations are serialized on the map of processes, while lookups and
+ * sends never take a lock: the map is concurrent, and locking the network
+ * freezes the membership into immutable snapshots (the sorted IDs, the set
+ * returned by getIds() and a table of processes indexed by ID), which are
+ * then shared by all the threads.
  * 
  * @author Stefano Tribioli
  * @author Casper Folkers
@@ -33,9 +51,10 @@ public abstract class Network implements NetworkInterface {
 	public static final int AUTO_INCREMENT = 0;
 
 	/**
-	 * List holding references for all processes.
+	 * List holding references for all processes. Registrations are
+	 * serialized by synchronizing on it.
 	 */
-	protected HashMap<Integer, ProcessInterface> processes = new HashMap<>();
+	protected final ConcurrentHashMap<Integer, ProcessInterface> processes = new ConcurrentHashMap<>();
 
 	/**
 	 * Keeps track of the largest ID in the network for auto-increment purposes.
@@ -43,20 +62,75 @@ public abstract class Network implements NetworkInterface {
 	protected int largestID = 0;
 
 	/**
-	 * List holding the messages waiting to be dispatched.
+	 * The shard this network is part of, null if it is the only network.
 	 */
-	protected ArrayList<Message> queue = new ArrayList<>();
+	protected Shard shard = null;
 
 	/**
-	 * If true, no new client can register to the network.
+	 * Sorted IDs of all processes, shared by every broadcast envelope. It is
+	 * rebuilt lazily after a registration and never modified afterwards.
 	 */
-	protected boolean locked = false;
+	private volatile int[] members = null;
+
+	/**
+	 * IDs of all processes, as returned by getIds() once the network is
+	 * locked, null before.
+	 */
+	private volatile Set<Integer> frozenIds = null;
+
+	/**
+	 * Processes indexed by ID, built when the network is locked. It stays
+	 * null if the IDs are too sparse for a table, the map being used instead.
+	 */
+	private volatile ProcessInterface[] table = null;
+
+	/**
+	 * If true, messages are numbered even when no trace is recorded, as
+	 * replays need to recognize them.
+	 */
+	protected volatile boolean sequenceMessages = false;
+
+	/**
+	 * Number of messages sent by every process, only counted while messages
+	 * are numbered.
+	 */
+	private final ConcurrentHashMap<Integer, AtomicInteger> sentCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * Queue holding the messages waiting to be dispatched.
+	 */
+	protected MessageQueue queue = new MessageQueue();
+
+	/**
+	 * Metrics of the network, registered as an MBean when it starts.
+	 */
+	protected final NetworkMetrics metrics = createMetrics();
+
+	/**
+	 * If true, no new client can register to the network. It is only set
+	 * while synchronized on the processes.
+	 */
+	protected volatile boolean locked = false;
 
 	/**
 	 * When spawning processes, they will be object of this class.
 	 */
 	protected Class<? extends Process> processClass;
 
+	/**
+	 * Names of the MBeans registered by the network, unregistered by
+	 * shutdown(). Only networks started with start() register any, so that
+	 * the ones created programmatically, by runners, benchmarks or test cases,
+	 * neither pin their processes in the platform MBean server nor replace
+	 * each other's. Guarded by itself.
+	 */
+	private final List<String> mbeans = new ArrayList<>();
+
+	/**
+	 * True once start() has been called.
+	 */
+	private volatile boolean started = false;
+
 	/**
 	 * Creates a new network instance.
 	 * 
@@ -70,13 +144,16 @@ public abstract class Network implements NetworkInterface {
 	@Override
 	public int register(ProcessInterface process) throws RemoteException,
 			LockedException {
-		if (locked) {
-			throw new LockedException();
-		}
-
 		synchronized (processes) {
-			processes.put(++largestID, process);
-			System.out.println("Added new process with id " + largestID);
+			if (locked) {
+				throw new LockedException();
+			}
+
+			members = null;
+			largestID = shard == null ? largestID + 1 : shard
+					.nextLocalId(largestID);
+			processes.put(largestID, process);
+			EventLog.info("Added new process with id {}", largestID);
 			return largestID;
 		}
 	}
@@ -84,11 +161,16 @@ public abstract class Network implements NetworkInterface {
 	@Override
 	public int register(ProcessInterface process, int id)
 			throws RemoteException, LockedException, DuplicateIDException {
-		if (locked) {
-			throw new LockedException();
+		if (shard != null && !shard.isLocal(id)) {
+			throw new IllegalArgumentException("ID " + id
+					+ " belongs to shard " + shard.owner(id));
 		}
 
 		synchronized (processes) {
+			if (locked) {
+				throw new LockedException();
+			}
+
 			if (processes.containsKey(id)) {
 				throw new DuplicateIDException();
 			}
@@ -97,15 +179,79 @@ public abstract class Network implements NetworkInterface {
 				largestID = id;
 			}
 
+			members = null;
 			processes.put(id, process);
-			System.out.println("Added new process with id " + id);
+			EventLog.info("Added new process with id {}", id);
 			return id;
 		}
 	}
 
 	@Override
 	public Set<Integer> getIds() throws RemoteException {
-		return processes.keySet();
+		if (shard == null) {
+			Set<Integer> ids = frozenIds;
+			return ids != null ? ids : new HashSet<>(processes.keySet());
+		}
+
+		HashSet<Integer> ids = new HashSet<>();
+		for (int id : shard.getAllIds()) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Processes of other shards are only reached through the network.
+	 */
+	@Override
+	public ProcessInterface getProcess(int id) {
+		if (shard != null && !shard.isLocal(id)) {
+			return null;
+		}
+
+		return process(id);
+	}
+
+	/**
+	 * @return The local process registered with an ID, or null if there is
+	 *         none.
+	 */
+	protected ProcessInterface process(int id) {
+		ProcessInterface[] processTable = table;
+		if (processTable == null) {
+			return processes.get(id);
+		}
+
+		return id > 0 && id < processTable.length ? processTable[id] : null;
+	}
+
+	/**
+	 * Makes this network a shard of a larger one. It must be called before
+	 * any process registers.
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * @return The sorted IDs of all processes, only the local ones if the
+	 *         network is sharded. The returned array must not be modified.
+	 */
+	protected int[] getMembers() {
+		int[] snapshot = members;
+		if (snapshot == null) {
+			synchronized (processes) {
+				snapshot = new int[processes.size()];
+				int i = 0;
+				for (int id : processes.keySet()) {
+					snapshot[i++] = id;
+				}
+				Arrays.sort(snapshot);
+				members = snapshot;
+			}
+		}
+
+		return snapshot;
 	}
 
 	/**
@@ -116,7 +262,9 @@ public abstract class Network implements NetworkInterface {
 	 * this method.
 	 */
 	public void start() {
-		System.out.println("Network is running, waiting for clients.");
+		started = true;
+		registerMBean(metrics, "type=Network");
+		EventLog.info("Network is running, waiting for clients.");
 
 		Thread parser = new Thread(new Runnable() {
 			@Override
@@ -182,11 +330,9 @@ public abstract class Network implements NetworkInterface {
 			try {
 				spawnProcess(newId);
 			} catch (LockedException e) {
-				System.out
-						.println("Unable to spawn new process: network is locked.");
+				EventLog.error("Unable to spawn new process: network is locked.");
 			} catch (DuplicateIDException e) {
-				System.out
-						.println("Unable to spawn new process: ID already in use.");
+				EventLog.error("Unable to spawn new process: ID already in use.");
 			}
 			return true;
 		case "populate":
@@ -194,23 +340,74 @@ public abstract class Network implements NetworkInterface {
 			 * A "populate" command will quicky spawn a specified number of
 			 * processes with incrementing IDs.
 			 */
-			System.out
-					.println("Enter size of the network:");
+			System.out.println("Enter size of the network:");
 			int newSize = Integer.parseInt(scanner.nextLine());
 			
 			try {
 				populateNetwork(newSize);
 			} catch (LockedException e) {
-				System.out
-						.println("Unable to spawn new process: network is locked.");
+				EventLog.error("Unable to spawn new process: network is locked.");
 			} catch (DuplicateIDException e) {
-				System.out
-						.println("Unable to spawn new process: ID already in use.");
+				EventLog.error("Unable to spawn new process: ID already in use.");
 			}
 			return true;
 		case "lock":
 			lock();
 			return true;
+		case "send":
+			/*
+			 * A "send" command makes a local process send a message, e.g. to
+			 * try a network spread over several shards.
+			 */
+			System.out.println("Enter sender ID:");
+			int sender = Integer.parseInt(scanner.nextLine().trim());
+			System.out.println("Enter recipient ID (or -1 for a broadcast):");
+			int recipient = Integer.parseInt(scanner.nextLine().trim());
+			System.out.println("Enter message:");
+			String body = scanner.nextLine();
+
+			ProcessInterface senderProcess = processes.get(sender);
+			if (senderProcess == null) {
+				EventLog.error("Entered ID is not present in the network.");
+				return true;
+			}
+			try {
+				senderProcess.sendMessage(recipient, body);
+			} catch (RemoteException e) {
+				EventLog.error("Unable to send message: RemoteException.");
+			}
+			return true;
+		case "log":
+			/*
+			 * A "log" command changes the level of the events printed by the
+			 * server and its local processes.
+			 */
+			System.out.println("Enter log level (off, error, info or trace):");
+			try {
+				EventLog.setLevel(EventLog.parseLevel(scanner.nextLine()
+						.trim()));
+			} catch (IllegalArgumentException e) {
+				EventLog.error(e.getMessage());
+			}
+			return true;
+		case "trace":
+			/*
+			 * A "trace" command starts recording a binary trace of the
+			 * messages (see Trace), or stops it if no file is given.
+			 */
+			System.out
+					.println("Enter trace file (or nothing to stop recording):");
+			String path = scanner.nextLine().trim();
+			if (path.isEmpty()) {
+				Trace.stop();
+			} else {
+				try {
+					Trace.start(path);
+				} catch (IOException e) {
+					EventLog.error("Unable to record trace {}", path, e);
+				}
+			}
+			return true;
 		case "exit":
 			/*
 			 * An "exit" command will terminate all VMs (all the clients and
@@ -253,12 +450,17 @@ public abstract class Network implements NetworkInterface {
 		try {
 			process = processClass.newInstance();
 			process.network = this;
+			configureProcess(process);
 			try {
 				if (id > 0) {
 					process.id = register(process, id);
 				} else {
 					process.id = register(process);
 				}
+
+				if (started && MBeans.isStandardMBean(process)) {
+					registerMBean(process, "type=Process,id=" + process.id);
+				}
 			} catch (RemoteException re) {
 				/*
 				 * This exception is never thrown, since we are creating the
@@ -266,54 +468,279 @@ public abstract class Network implements NetworkInterface {
 				 */
 			}
 		} catch (InstantiationException | IllegalAccessException e) {
-			e.printStackTrace(System.out);
+			EventLog.error("Unable to spawn new process.", e);
+		}
+	}
+
+	/**
+	 * Creates the metrics of the network. Derived classes may override it to
+	 * return an extended version, but must not rely on their own fields.
+	 */
+	protected NetworkMetrics createMetrics() {
+		return new NetworkMetrics();
+	}
+
+	/**
+	 * Called on every locally spawned process before its registration.
+	 * <p>
+	 * This implementation does nothing, derived classes may override it to
+	 * apply their own settings to new processes.
+	 * 
+	 * @param process
+	 *            The newly created process.
+	 */
+	protected void configureProcess(Process process) {
+	}
+
+	private void registerMBean(Object mbean, String properties) {
+		if (MBeans.register(mbean, properties)) {
+			synchronized (mbeans) {
+				mbeans.add(properties);
+			}
 		}
 	}
 
 	/**
-	 * Lock the network, preventing other processes to register.
+	 * Releases the threads started by the network, which can't be used any
+	 * more afterwards, and unregisters its MBeans. Meant for networks created
+	 * programmatically, e.g. by benchmarks, which would otherwise leave their
+	 * threads behind.
+	 * <p>
+	 * Derived classes starting threads must override it, and call through to
+	 * the super class's implementation.
+	 */
+	public void shutdown() {
+		synchronized (mbeans) {
+			for (String properties : mbeans) {
+				MBeans.unregister(properties);
+			}
+			mbeans.clear();
+		}
+	}
+
+	/**
+	 * Lock the network, preventing other processes to register. Only the
+	 * first call has any effect, even when several threads lock the network
+	 * at the same time.
 	 */
 	public void lock() {
-		if (!locked) {
+		synchronized (processes) {
+			if (locked) {
+				return;
+			}
+
+			freezeMembership();
 			locked = true;
+		}
 
-			for (ProcessInterface process : processes.values()) {
-				try {
-					process.start();
-				} catch (RemoteException e) {
-					throw new RuntimeException(e);
-				}
+		if (shard != null) {
+			shard.lockOthers();
+		}
+
+		for (ProcessInterface process : processes.values()) {
+			try {
+				process.start();
+			} catch (RemoteException e) {
+				throw new RuntimeException(e);
 			}
 		}
+
+		locked();
 	}
 
+	/**
+	 * Called once, by the thread that locked the network, after the processes
+	 * have been started.
+	 * <p>
+	 * This implementation does nothing, derived classes may override it.
+	 */
+	protected void locked() {
+	}
+
+	/**
+	 * Builds the snapshots of the membership, which can't change any more.
+	 * Must be called while synchronized on the processes.
+	 */
+	private void freezeMembership() {
+		members = null;
+		int[] ids = getMembers();
+		frozenIds = Collections.unmodifiableSet(new HashSet<>(processes
+				.keySet()));
+
+		/*
+		 * IDs assigned by auto-increment are dense, but manually assigned ones
+		 * may not be: the table is only built when it is not much larger than
+		 * the number of processes.
+		 */
+		int largest = ids.length == 0 ? 0 : ids[ids.length - 1];
+		if (largest <= 4 * ids.length + 64) {
+			ProcessInterface[] processTable = new ProcessInterface[largest + 1];
+			for (int id : ids) {
+				processTable[id] = processes.get(id);
+			}
+			table = processTable;
+		}
+	}
+
+	/**
+	 * Broadcasts are queued as a single envelope shared by all recipients,
+	 * the per-recipient copies are only created by the dispatcher. Senders
+	 * never wait for the dispatcher to release the queue.
+	 */
 	@Override
 	public void sendMessage(Message message) throws RemoteException {
-		synchronized (processes) {
-			switch (message.recipient) {
-			case Constants.BROADCAST:
-				for (Entry<Integer, ProcessInterface> pair : processes
-						.entrySet()) {
-					if (!pair.getKey().equals(message.sender)) {
-						Message messageCopy = new Message(message.sender,
-								pair.getKey(), message.clock, message.body);
-						queue.add(messageCopy);
-						System.out.println(messageCopy.toString(processes
-								.size()) + " put in queue.");
-					}
-				}
-				break;
-			case Constants.NETWORK:
-				processControlMessage(message);
+		if (message.recipient != Constants.NETWORK
+				&& (sequenceMessages || Trace.isEnabled())) {
+			message.sequence = nextSequence(message.sender);
+		}
+
+		switch (message.recipient) {
+		case Constants.BROADCAST:
+			int[] recipients = getMembers();
+			int copies = recipients.length;
+			if (Arrays.binarySearch(recipients, message.sender) >= 0) {
+				copies--;
+			}
+			Trace.record(Trace.ENQUEUE, message.sender, message.recipient,
+					message.sequence, copies);
+			queue.addBroadcast(message, recipients);
+			if (shard != null) {
+				shard.routeBroadcast(message);
+			}
+			metrics.broadcasts.increment();
+			metrics.broadcastCopies.add(copies);
+			metrics.enqueued.add(copies);
+			EventLog.trace("{} put in queue for broadcast.", message);
+			break;
+		case Constants.NETWORK:
+			processControlMessage(message);
+			break;
+		default:
+			Trace.record(Trace.ENQUEUE, message.sender, message.recipient,
+					message.sequence, 1);
+			if (shard != null && shard.isRemote(message.recipient)) {
+				shard.route(message);
+				EventLog.trace("{} handed to shard {}.", message,
+						shard.owner(message.recipient));
 				break;
-			default:
-				synchronized (queue) {
-					queue.add(message);
-					System.out.println(message + " put in queue.");
+			}
+			queue.add(message);
+			metrics.enqueued.increment();
+			EventLog.trace("{} put in queue.", message);
+			break;
+		}
+	}
+
+	/**
+	 * A multicast is queued as a single envelope holding the recipient set,
+	 * like a broadcast, copies being created by the dispatcher. In a sharded
+	 * network, recipients owned by other shards are handed their own copy.
+	 */
+	@Override
+	public void multicast(Message message, RecipientSet recipients)
+			throws RemoteException {
+		if (sequenceMessages || Trace.isEnabled()) {
+			message.sequence = nextSequence(message.sender);
+		}
+
+		int copies = recipients.size();
+		if (recipients.contains(message.sender)) {
+			copies--;
+		}
+
+		RecipientSet local = recipients;
+		if (shard != null) {
+			int[] ids = new int[recipients.size()];
+			int count = 0;
+			for (int i = 0; i < recipients.size(); i++) {
+				int recipient = recipients.get(i);
+				if (recipient == message.sender) {
+					continue;
+				}
+
+				if (shard.isRemote(recipient)) {
+					shard.route(message.forRecipient(recipient));
+				} else {
+					ids[count++] = recipient;
 				}
-				break;
 			}
+			local = RecipientSet.ofSorted(Arrays.copyOf(ids, count));
 		}
+
+		int queued = local.size();
+		if (local.contains(message.sender)) {
+			queued--;
+		}
+		Trace.record(Trace.ENQUEUE, message.sender, Constants.BROADCAST,
+				message.sequence, queued);
+		queue.addMulticast(message, local);
+		metrics.multicasts.increment();
+		metrics.multicastCopies.add(copies);
+		metrics.enqueued.add(queued);
+		EventLog.trace("{} put in queue for {}.", message, local);
+	}
+
+	/**
+	 * This implementation sends the messages one by one, then the ready
+	 * message as a control message.
+	 */
+	@Override
+	public void submitRound(Outbox outbox) throws RemoteException {
+		outbox.sendEach(this);
+		sendMessage(outbox.readyMessage());
+	}
+
+	/**
+	 * Queues messages handed over by another shard, broadcasts being delivered
+	 * to all the local processes.
+	 * 
+	 * @param round
+	 *            The round the other shard was in, see getRound().
+	 */
+	protected void acceptFromShard(long round, List<Message> messages) {
+		for (Message message : messages) {
+			if (message.recipient == Constants.BROADCAST) {
+				int[] recipients = getMembers();
+				queue.addBroadcast(message, recipients);
+				metrics.broadcastCopies.add(recipients.length);
+				metrics.enqueued.add(recipients.length);
+			} else {
+				queue.add(message);
+				metrics.enqueued.increment();
+			}
+		}
+		EventLog.trace("{} messages received from another shard.",
+				messages.size());
+	}
+
+	/**
+	 * @return The number of rounds started so far, always zero for
+	 *         asynchronous networks.
+	 */
+	protected long getRound() {
+		return 0;
+	}
+
+	/**
+	 * @return The number of the next message of the sender, starting from 1.
+	 */
+	private int nextSequence(int sender) {
+		AtomicInteger count = sentCounts.get(sender);
+		if (count == null) {
+			AtomicInteger fresh = new AtomicInteger();
+			count = sentCounts.putIfAbsent(sender, fresh);
+			if (count == null) {
+				count = fresh;
+			}
+		}
+		return count.incrementAndGet();
+	}
+
+	/**
+	 * Restarts the numbering of the messages of every process.
+	 */
+	protected void resetSequences() {
+		sentCounts.clear();
 	}
 
 	/**
@@ -327,11 +754,14 @@ public abstract class Network implements NetworkInterface {
 	 *            The message to be processed.
 	 */
 	protected void processControlMessage(Message message) {
-		System.out.println("Control message " + message + " discarded");
+		EventLog.info("Control message {} discarded", message);
 	}
 
 	/**
 	 * Dispatches a message from the queue to the recipient.
+	 * 
+	 * @param index
+	 *            The position of the message in the queue, in order of arrival.
 	 */
 	protected void forwardMessage(int index) {
 		Message message;
@@ -340,6 +770,13 @@ public abstract class Network implements NetworkInterface {
 			message = queue.remove(index);
 		}
 
+		forwardMessage(message);
+	}
+
+	/**
+	 * Dispatches a message, already removed from the queue, to the recipient.
+	 */
+	protected void forwardMessage(Message message) {
 		try {
 			if (this instanceof AsyncNetwork) {
 				/*
@@ -347,27 +784,88 @@ public abstract class Network implements NetworkInterface {
 				 * environment, much less in a sync one, since there it happends
 				 * predictably at the end of the round.
 				 */
-				System.out.println("Forwarding "
-						+ message.toString(processes.size()));
+				EventLog.trace("Forwarding {}", message);
+			}
+			Trace.record(Trace.FORWARD, message.recipient, message.sender,
+					message.sequence, 0);
+			long start = System.nanoTime();
+			process(message.recipient).recieveMessage(message);
+			metrics.delivered(start, 1);
+		} catch (RemoteException e) {
+			metrics.remoteException.increment();
+			EventLog.error("Unable to send message {} RemoteException", message);
+		} catch (NullPointerException e) {
+			metrics.missingRecipient.increment();
+			EventLog.error("Unable to send message {} Missing recipient",
+					message);
+		}
+	}
+
+	/**
+	 * Dispatches a batch of messages to the same recipient with a single call.
+	 * 
+	 * @param recipient
+	 *            The ID of the recipient of all the messages.
+	 * @param messages
+	 *            The messages, in order of delivery.
+	 */
+	protected void forwardMessages(int recipient, List<Message> messages) {
+		try {
+			if (this instanceof AsyncNetwork
+					&& EventLog.isEnabled(EventLog.TRACE)) {
+				for (Message message : messages) {
+					EventLog.trace("Forwarding {}", message);
+				}
+			}
+			if (Trace.isEnabled()) {
+				for (Message message : messages) {
+					Trace.record(Trace.FORWARD, recipient, message.sender,
+							message.sequence, 0);
+				}
 			}
-			processes.get(message.recipient).recieveMessage(message);
+			long start = System.nanoTime();
+			process(recipient).recieveMessages(messages);
+			metrics.delivered(start, messages.size());
 		} catch (RemoteException e) {
-			System.out.println("Unable to send message " + message
-					+ " RemoteException");
+			metrics.remoteException.add(messages.size());
+			EventLog.error("Unable to send {} messages to {} RemoteException",
+					messages.size(), recipient);
 		} catch (NullPointerException e) {
-			System.out.println("Unable to send message " + message
-					+ " Missing recipient");
+			metrics.missingRecipient.add(messages.size());
+			EventLog.error("Unable to send {} messages to {} Missing recipient",
+					messages.size(), recipient);
+		}
+	}
+
+	/**
+	 * Empties the queue, grouping its messages by recipient.
+	 * 
+	 * @return The batches of messages for each recipient, in order of first
+	 *         appearance in the queue. Within every batch, messages keep the
+	 *         order they had in the queue.
+	 */
+	protected LinkedHashMap<Integer, List<Message>> drainQueueByRecipient() {
+		synchronized (queue) {
+			return queue.removeAllByRecipient();
 		}
 	}
 
 	protected void forwardSingleSequentially() {
-		forwardMessage(0);
+		synchronized (queue) {
+			if (!queue.isEmpty()) {
+				forwardMessage(queue.removeFirst());
+			}
+		}
 	}
 
+	/**
+	 * Dispatches the whole queue, with one call for each recipient.
+	 */
 	protected void forwardAllSequentially() {
 		synchronized (queue) {
-			while (!queue.isEmpty()) {
-				forwardMessage(0);
+			for (Entry<Integer, List<Message>> batch : drainQueueByRecipient()
+					.entrySet()) {
+				forwardMessages(batch.getKey(), batch.getValue());
 			}
 		}
 	}
@@ -0,0 +1,151 @@
+package da25.server;
+
+import java.util.concurrent.TimeUnit;
+
+import da25.base.metrics.Histogram;
+import da25.base.metrics.Rate;
+import da25.base.metrics.StripedCounter;
+
+/**
+ * Counters updated by a network while queueing and forwarding messages. All
+ * of them are striped, so the threads sending and dispatching messages don't
+ * contend on them.
+ */
+public class NetworkMetrics implements NetworkMetricsMBean {
+	final StripedCounter enqueued = new StripedCounter();
+	final StripedCounter forwarded = new StripedCounter();
+	final StripedCounter broadcasts = new StripedCounter();
+	final StripedCounter broadcastCopies = new StripedCounter();
+	final StripedCounter multicasts = new StripedCounter();
+	final StripedCounter multicastCopies = new StripedCounter();
+	final StripedCounter missingRecipient = new StripedCounter();
+	final StripedCounter remoteException = new StripedCounter();
+	final StripedCounter shardBatches = new StripedCounter();
+	final StripedCounter shardMessages = new StripedCounter();
+
+	/**
+	 * Duration of the calls delivering messages to processes, in nanoseconds.
+	 */
+	final Histogram deliveryLatency = new Histogram();
+
+	private final Rate enqueueRate = new Rate();
+	private final Rate forwardRate = new Rate();
+
+	NetworkMetrics() {
+	}
+
+	/**
+	 * Records a successful call delivering messages to a process.
+	 * 
+	 * @param start
+	 *            The value of System.nanoTime() before the call.
+	 * @param messages
+	 *            The number of messages delivered by the call.
+	 */
+	void delivered(long start, int messages) {
+		deliveryLatency.record(System.nanoTime() - start);
+		forwarded.add(messages);
+	}
+
+	static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/**
+	 * Computed from the counters, so that polling it never waits for the
+	 * queue's lock.
+	 */
+	@Override
+	public int getQueueDepth() {
+		long depth = enqueued.get() - forwarded.get() - missingRecipient.get()
+				- remoteException.get();
+		return (int) Math.max(0, depth);
+	}
+
+	@Override
+	public long getMessagesEnqueued() {
+		return enqueued.get();
+	}
+
+	@Override
+	public double getEnqueueRate() {
+		return enqueueRate.update(enqueued.get());
+	}
+
+	@Override
+	public long getMessagesForwarded() {
+		return forwarded.get();
+	}
+
+	@Override
+	public double getForwardRate() {
+		return forwardRate.update(forwarded.get());
+	}
+
+	@Override
+	public long getBroadcasts() {
+		return broadcasts.get();
+	}
+
+	@Override
+	public double getMeanBroadcastFanOut() {
+		long count = broadcasts.get();
+		return count == 0 ? 0 : (double) broadcastCopies.get() / count;
+	}
+
+	@Override
+	public long getMulticasts() {
+		return multicasts.get();
+	}
+
+	@Override
+	public double getMeanMulticastFanOut() {
+		long count = multicasts.get();
+		return count == 0 ? 0 : (double) multicastCopies.get() / count;
+	}
+
+	@Override
+	public long getDeliveries() {
+		return deliveryLatency.getCount();
+	}
+
+	@Override
+	public double getDeliveryLatencyMean() {
+		return deliveryLatency.getMean() / 1000;
+	}
+
+	@Override
+	public long getDeliveryLatency50thPercentile() {
+		return micros(deliveryLatency.getPercentile(0.5));
+	}
+
+	@Override
+	public long getDeliveryLatency99thPercentile() {
+		return micros(deliveryLatency.getPercentile(0.99));
+	}
+
+	@Override
+	public long getDeliveryLatencyMax() {
+		return micros(deliveryLatency.getMax());
+	}
+
+	@Override
+	public long getFailedMissingRecipient() {
+		return missingRecipient.get();
+	}
+
+	@Override
+	public long getFailedRemoteException() {
+		return remoteException.get();
+	}
+
+	@Override
+	public long getShardBatchesSent() {
+		return shardBatches.get();
+	}
+
+	@Override
+	public long getShardMessagesSent() {
+		return shardMessages.get();
+	}
+}
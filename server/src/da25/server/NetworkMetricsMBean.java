@@ -0,0 +1,64 @@
+package da25.server;
+
+/**
+ * Metrics of a network, exposed through JMX. Durations are in microseconds.
+ */
+public interface NetworkMetricsMBean {
+	/**
+	 * @return The number of messages queued and neither forwarded nor
+	 *         failed yet, counting every copy of a broadcast. Messages that
+	 *         fail on their way to another shard were never queued, so they
+	 *         make it an underestimate, never below zero.
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * @return The number of messages queued, counting every copy of a
+	 *         broadcast.
+	 */
+	public long getMessagesEnqueued();
+
+	public double getEnqueueRate();
+
+	public long getMessagesForwarded();
+
+	public double getForwardRate();
+
+	public long getBroadcasts();
+
+	public double getMeanBroadcastFanOut();
+
+	public long getMulticasts();
+
+	public double getMeanMulticastFanOut();
+
+	/**
+	 * @return The number of calls delivering messages to processes, a batch
+	 *         counting as one.
+	 */
+	public long getDeliveries();
+
+	public double getDeliveryLatencyMean();
+
+	public long getDeliveryLatency50thPercentile();
+
+	public long getDeliveryLatency99thPercentile();
+
+	public long getDeliveryLatencyMax();
+
+	public long getFailedMissingRecipient();
+
+	public long getFailedRemoteException();
+
+	/**
+	 * @return The number of batches handed over to other shards, zero if the
+	 *         network is not sharded.
+	 */
+	public long getShardBatchesSent();
+
+	/**
+	 * @return The number of messages handed over to other shards, a broadcast
+	 *         counting once per shard.
+	 */
+	public long getShardMessagesSent();
+}
@@ -0,0 +1,182 @@
+package da25.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+import da25.base.Message;
+import da25.base.Outbox;
+import da25.base.RecipientSet;
+import da25.base.exceptions.DuplicateIDException;
+import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.base.nio.FrameHandler;
+import da25.base.nio.Frames;
+import da25.base.nio.NioConnection;
+import da25.base.nio.NioLoop;
+
+/**
+ * Exposes a network to clients through the NIO transport, as an alternative
+ * to exporting it with RMI.
+ * <p>
+ * Every connection represents a single process, registered with the network
+ * through a NioProcessStub. Requests are served directly on the loop's thread,
+ * since the network only queues messages there.
+ */
+public class NioNetworkServer implements FrameHandler {
+	private final Network network;
+	private final NioLoop loop;
+	private final int port;
+
+	/**
+	 * @param port
+	 *            The port to listen on, or zero for any free one.
+	 */
+	public NioNetworkServer(Network network, int port) throws IOException {
+		this.network = network;
+		loop = new NioLoop(this, "NIO server");
+		this.port = loop.listen(port);
+	}
+
+	/**
+	 * @return The port the server is listening on.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public void start() {
+		loop.start();
+	}
+
+	@Override
+	public void onFrame(NioConnection connection, ByteBuffer frame) {
+		byte operation = frame.get();
+		try {
+			switch (operation) {
+			case Frames.SEND:
+				network.sendMessage(Frames.readMessage(frame));
+				break;
+			case Frames.MULTICAST:
+				Message message = Frames.readMessage(frame);
+				network.multicast(message, readRecipients(frame));
+				break;
+			case Frames.SUBMIT_ROUND:
+				Outbox outbox = new Outbox(frame.getInt());
+				outbox.quiescent = frame.get() != 0;
+				int count = frame.getInt();
+				for (int i = 0; i < count; i++) {
+					boolean multicast = frame.get() != 0;
+					Message submitted = Frames.readMessage(frame);
+					if (multicast) {
+						outbox.multicast(submitted, readRecipients(frame));
+					} else {
+						outbox.send(submitted);
+					}
+				}
+				network.submitRound(outbox);
+				break;
+			case Frames.REGISTER:
+				register(connection, frame.getInt(), 0);
+				break;
+			case Frames.REGISTER_ID:
+				register(connection, frame.getInt(), frame.getInt());
+				break;
+			case Frames.GET_IDS:
+				replyIds(connection, frame.getInt());
+				break;
+			case Frames.REPLY:
+				if (connection.attachment != null) {
+					((NioProcessStub) connection.attachment).onReply(frame
+							.getInt());
+				}
+				break;
+			default:
+				EventLog.error("Unknown operation {}, closing connection.",
+						operation);
+				connection.close();
+				break;
+			}
+		} catch (IOException e) {
+			connection.close();
+		} catch (RuntimeException e) {
+			/*
+			 * A truncated or malformed frame, or a request the network
+			 * rejected, such as the registration of an ID of another shard.
+			 */
+			EventLog.error("Closing connection after operation {} failed: {}",
+					operation, e.toString());
+			connection.close();
+		}
+	}
+
+	private static RecipientSet readRecipients(ByteBuffer frame)
+			throws IOException {
+		int length = frame.getInt();
+		if (length < 0 || length > frame.remaining()) {
+			throw new IOException("Invalid recipient set length " + length);
+		}
+		byte[] set = new byte[length];
+		frame.get(set);
+		return RecipientSet.fromBytes(set);
+	}
+
+	@Override
+	public void onClose(NioConnection connection) {
+		if (connection.attachment != null) {
+			((NioProcessStub) connection.attachment).onClose();
+		}
+	}
+
+	private void register(NioConnection connection, int request, int id)
+			throws IOException {
+		NioProcessStub stub = new NioProcessStub(connection);
+		connection.attachment = stub;
+
+		byte status = Frames.STATUS_OK;
+		try {
+			if (id > 0) {
+				id = network.register(stub, id);
+			} else {
+				id = network.register(stub);
+			}
+		} catch (LockedException e) {
+			status = Frames.STATUS_LOCKED;
+		} catch (DuplicateIDException e) {
+			status = Frames.STATUS_DUPLICATE;
+		} catch (RemoteException e) {
+			/*
+			 * This exception is never thrown, since the network is local.
+			 */
+		}
+
+		ByteBuffer out = connection.beginFrame(1 + 4 + 1 + 4);
+		try {
+			out.put(Frames.REPLY);
+			out.putInt(request);
+			out.put(status);
+			out.putInt(id);
+		} finally {
+			connection.endFrame();
+		}
+	}
+
+	private void replyIds(NioConnection connection, int request)
+			throws IOException {
+		ArrayList<Integer> ids = new ArrayList<>(network.getIds());
+
+		ByteBuffer out = connection.beginFrame(1 + 4 + 1 + 4 + 4 * ids.size());
+		try {
+			out.put(Frames.REPLY);
+			out.putInt(request);
+			out.put(Frames.STATUS_OK);
+			out.putInt(ids.size());
+			for (int id : ids) {
+				out.putInt(id);
+			}
+		} finally {
+			connection.endFrame();
+		}
+	}
+}
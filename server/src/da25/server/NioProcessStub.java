@@ -0,0 +1,158 @@
+package da25.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.HashSet;
+import java.util.List;
+
+import da25.base.Message;
+import da25.base.ProcessInterface;
+import da25.base.nio.Frames;
+import da25.base.nio.NioConnection;
+
+/**
+ * Server side representative of a process connected through the NIO
+ * transport. All calls but sendMessage() are one-way: they are encoded into the
+ * connection's output buffer and return immediately.
+ */
+public class NioProcessStub implements ProcessInterface {
+	private final NioConnection connection;
+
+	/**
+	 * Requests acknowledged by the client and not yet collected, guarded by
+	 * itself.
+	 */
+	private final HashSet<Integer> acknowledged = new HashSet<>();
+
+	private int lastRequest = 0;
+
+	public NioProcessStub(NioConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Called by the server when the client acknowledges a request.
+	 */
+	void onReply(int request) {
+		synchronized (acknowledged) {
+			acknowledged.add(request);
+			acknowledged.notifyAll();
+		}
+	}
+
+	/**
+	 * Called by the server when the connection is closed.
+	 */
+	void onClose() {
+		synchronized (acknowledged) {
+			acknowledged.notifyAll();
+		}
+	}
+
+	@Override
+	public void start() throws RemoteException {
+		sendOperation(Frames.START);
+	}
+
+	@Override
+	public void recieveMessage(Message message) throws RemoteException {
+		byte[] body = Frames.encodeBody(message);
+		try {
+			ByteBuffer out = connection.beginFrame(1 + Frames.messageSize(
+					message, body));
+			try {
+				out.put(Frames.RECEIVE);
+				Frames.writeMessage(out, message, body);
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to deliver message", e);
+		}
+	}
+
+	@Override
+	public void recieveMessages(List<Message> messages) throws RemoteException {
+		byte[][] bodies = new byte[messages.size()][];
+		int size = 1 + 4;
+		for (int i = 0; i < bodies.length; i++) {
+			bodies[i] = Frames.encodeBody(messages.get(i));
+			size += Frames.messageSize(messages.get(i), bodies[i]);
+		}
+
+		try {
+			ByteBuffer out = connection.beginFrame(size);
+			try {
+				out.put(Frames.RECEIVE_BATCH);
+				out.putInt(bodies.length);
+				for (int i = 0; i < bodies.length; i++) {
+					Frames.writeMessage(out, messages.get(i), bodies[i]);
+				}
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to deliver messages", e);
+		}
+	}
+
+	@Override
+	public void exit() throws RemoteException {
+		sendOperation(Frames.EXIT);
+	}
+
+	@Override
+	public void sendMessage(int recipient, String body)
+			throws RemoteException {
+		int request;
+		synchronized (acknowledged) {
+			request = ++lastRequest;
+		}
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		try {
+			ByteBuffer out = connection.beginFrame(1 + 4 + 4 + 4
+					+ bytes.length);
+			try {
+				out.put(Frames.SEND_TEXT);
+				out.putInt(request);
+				out.putInt(recipient);
+				out.putInt(bytes.length);
+				out.put(bytes);
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to send command", e);
+		}
+
+		synchronized (acknowledged) {
+			while (!acknowledged.remove(request)) {
+				if (connection.isClosed()) {
+					throw new RemoteException("Connection closed");
+				}
+
+				try {
+					acknowledged.wait();
+				} catch (InterruptedException e) {
+					throw new RemoteException("Interrupted", e);
+				}
+			}
+		}
+	}
+
+	private void sendOperation(byte operation) throws RemoteException {
+		try {
+			ByteBuffer out = connection.beginFrame(1);
+			try {
+				out.put(operation);
+			} finally {
+				connection.endFrame();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to send command", e);
+		}
+	}
+}
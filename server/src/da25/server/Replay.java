@@ -0,0 +1,222 @@
+package da25.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import da25.base.Message;
+import da25.base.log.EventLog;
+import da25.base.trace.Trace;
+import da25.base.trace.TraceReader;
+
+/**
+ * Forwards the messages of an asynchronous network in the order recorded in a
+ * trace, so that a run can be reproduced exactly.
+ * <p>
+ * The workload of the recorded run must be performed again, e.g. the same
+ * scenario or test case on a fresh network. Messages are recognized by their
+ * sender, recipient and sequence number, and the replay only forwards a
+ * message once every message handed to the network before its recorded
+ * forward has been sent again, which keeps the sends of the workload
+ * interleaved with the deliveries as they were. Runs with several dispatcher
+ * threads are replayed with their forwards serialized in recorded order.
+ */
+public class Replay {
+	private final AsyncNetwork network;
+
+	/**
+	 * Enqueue and forward events of the trace, in recorded order. Enqueues
+	 * only keep their type, as they are only counted.
+	 */
+	private final byte[] types;
+	private final int[] recipients, senders, sequences;
+	private final int length;
+
+	/**
+	 * Index of the next event to be replayed.
+	 */
+	private int next = 0;
+
+	/**
+	 * Messages handed to the network since the replay started, counted
+	 * without the replay's lock so that senders never wait for deliveries.
+	 */
+	private final AtomicLong sent = new AtomicLong();
+
+	/**
+	 * Messages sent which were matched with a recorded enqueue.
+	 */
+	private long matched = 0;
+
+	private long forwarded = 0;
+
+	/**
+	 * Messages taken from the queue and waiting for their turn.
+	 */
+	private final HashMap<Key, Message> pending = new HashMap<>();
+
+	/**
+	 * True while forwarding, to ignore calls made from within deliveries.
+	 */
+	private boolean advancing = false;
+
+	private boolean finished = false;
+
+	/**
+	 * Reads the trace to be replayed.
+	 */
+	public Replay(AsyncNetwork network, String path) throws IOException {
+		this.network = network;
+
+		byte[] types = new byte[1024];
+		int[] recipients = new int[1024];
+		int[] senders = new int[1024];
+		int[] sequences = new int[1024];
+		int count = 0;
+		try (TraceReader reader = new TraceReader(path)) {
+			while (reader.next()) {
+				byte type = reader.getType();
+				if (type != Trace.ENQUEUE && type != Trace.FORWARD) {
+					continue;
+				}
+
+				if (count == types.length) {
+					types = Arrays.copyOf(types, count * 2);
+					recipients = Arrays.copyOf(recipients, count * 2);
+					senders = Arrays.copyOf(senders, count * 2);
+					sequences = Arrays.copyOf(sequences, count * 2);
+				}
+				types[count] = type;
+				recipients[count] = reader.getProcess();
+				senders[count] = reader.getPeer();
+				sequences[count] = reader.getSequence();
+				count++;
+			}
+		}
+
+		this.types = types;
+		this.recipients = recipients;
+		this.senders = senders;
+		this.sequences = sequences;
+		this.length = count;
+	}
+
+	/**
+	 * A message was handed to the network.
+	 */
+	void sent() {
+		sent.incrementAndGet();
+	}
+
+	/**
+	 * Forwards as many messages as the trace allows at this point.
+	 * 
+	 * @return True if the whole trace has been replayed.
+	 */
+	synchronized boolean advance() {
+		if (advancing || finished) {
+			return finished;
+		}
+
+		advancing = true;
+		try {
+			while (next < length) {
+				admitQueued();
+
+				if (types[next] == Trace.ENQUEUE) {
+					if (matched == sent.get()) {
+						break;
+					}
+					matched++;
+					next++;
+					continue;
+				}
+
+				Message message = pending.remove(new Key(senders[next],
+						recipients[next], sequences[next]));
+				if (message == null) {
+					break;
+				}
+				next++;
+				forwarded++;
+				network.forwardMessage(message);
+			}
+		} finally {
+			advancing = false;
+		}
+
+		if (next == length) {
+			finish();
+		}
+		return finished;
+	}
+
+	/**
+	 * Stops replaying, giving back to the network the messages not forwarded
+	 * yet, if any.
+	 */
+	synchronized void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		admitQueued();
+		for (Message message : pending.values()) {
+			network.queue.add(message);
+		}
+
+		if (next == length && pending.isEmpty()) {
+			EventLog.info("Replay finished, {} messages forwarded.", forwarded);
+		} else {
+			EventLog.error(
+					"Replay stopped at event {} of {}, {} messages not in the trace.",
+					next, length, pending.size());
+		}
+		pending.clear();
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getForwarded() {
+		return forwarded;
+	}
+
+	private void admitQueued() {
+		synchronized (network.queue) {
+			while (!network.queue.isEmpty()) {
+				Message message = network.queue.removeFirst();
+				pending.put(new Key(message.sender, message.recipient,
+						message.sequence), message);
+			}
+		}
+	}
+
+	private static final class Key {
+		final int sender, recipient, sequence;
+
+		Key(int sender, int recipient, int sequence) {
+			this.sender = sender;
+			this.recipient = recipient;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return sender == key.sender && recipient == key.recipient
+					&& sequence == key.sequence;
+		}
+
+		@Override
+		public int hashCode() {
+			return (sender * 31 + recipient) * 31 + sequence;
+		}
+	}
+}
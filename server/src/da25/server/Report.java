@@ -0,0 +1,119 @@
+package da25.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Results of a run, as ordered pairs of names and values (strings, numbers,
+ * booleans or nested reports), written as a single line of JSON.
+ */
+public class Report {
+	private final LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+
+	public Report put(String name, Object value) {
+		values.put(name, value);
+		return this;
+	}
+
+	public Object get(String name) {
+		return values.get(name);
+	}
+
+	/**
+	 * @return The names of the values, in the order they were put.
+	 */
+	public Set<String> getNames() {
+		return values.keySet();
+	}
+
+	/**
+	 * @return A report with the values of the nested reports in place of
+	 *         them, named after the nested report and the value, e.g.
+	 *         "phases.populate".
+	 */
+	public Report flatten() {
+		Report flat = new Report();
+		flatten(flat, "");
+		return flat;
+	}
+
+	private void flatten(Report flat, String prefix) {
+		for (Entry<String, Object> pair : values.entrySet()) {
+			if (pair.getValue() instanceof Report) {
+				((Report) pair.getValue()).flatten(flat, prefix
+						+ pair.getKey() + ".");
+			} else {
+				flat.values.put(prefix + pair.getKey(), pair.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Records a duration, given in nanoseconds, in milliseconds.
+	 */
+	public Report putMillis(String name, long nanos) {
+		values.put(name, Math.round(nanos / 1000.0) / 1000.0);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder bld = new StringBuilder();
+		write(bld);
+		return bld.toString();
+	}
+
+	private void write(StringBuilder bld) {
+		bld.append('{');
+		boolean first = true;
+		for (Entry<String, Object> pair : values.entrySet()) {
+			if (!first) {
+				bld.append(',');
+			}
+			first = false;
+
+			writeString(bld, pair.getKey());
+			bld.append(':');
+			Object value = pair.getValue();
+			if (value instanceof Report) {
+				((Report) value).write(bld);
+			} else if (value instanceof Number || value instanceof Boolean) {
+				bld.append(value);
+			} else if (value == null) {
+				bld.append("null");
+			} else {
+				writeString(bld, value.toString());
+			}
+		}
+		bld.append('}');
+	}
+
+	private static void writeString(StringBuilder bld, String string) {
+		bld.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			switch (c) {
+			case '"':
+				bld.append("\\\"");
+				break;
+			case '\\':
+				bld.append("\\\\");
+				break;
+			case '\n':
+				bld.append("\\n");
+				break;
+			case '\t':
+				bld.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					bld.append(String.format("\\u%04x", (int) c));
+				} else {
+					bld.append(c);
+				}
+			}
+		}
+		bld.append('"');
+	}
+}
@@ -0,0 +1,172 @@
+package da25.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A workload to be run by ScenarioRunner, or by SweepRunner over a grid of
+ * values of its keys, read from a properties file.
+ * <p>
+ * Keys, with their defaults:
+ * <ul>
+ * <li>network: bss or ag (required)</li>
+ * <li>processes: size of the network (10)</li>
+ * <li>seed: seed of every random choice (1)</li>
+ * <li>runs: number of measured runs (1), each on a fresh network</li>
+ * <li>warmup: number of runs before the measured ones, not reported (0)</li>
+ * <li>log: level of the event log during the runs (off)</li>
+ * <li>output: file the results are appended to (standard output)</li>
+ * <li>trace: file a binary trace of every measured run is recorded into, its
+ * number being appended when there are several runs (none)</li>
+ * </ul>
+ * BSS networks also use:
+ * <ul>
+ * <li>senders: either a number of processes picked at random or a comma
+ * separated list of IDs (5)</li>
+ * <li>broadcasts: number of broadcasts sent by each sender (20)</li>
+ * <li>compress: true to send delta clocks (false)</li>
+ * <li>dispatch: sequential, random, threads, simulated or direct (random).
+ * With sequential and random, the queue is emptied after every sender has
+ * sent a broadcast, in order of arrival or in random order. With threads,
+ * dispatcher threads deliver messages while the senders are sending. With
+ * simulated, messages are delivered in virtual time (see Simulation). With
+ * direct, processes send their messages to each other without going through
+ * the network (see DirectTransport).</li>
+ * <li>dispatch.threads: number of dispatcher threads (4)</li>
+ * <li>dispatch.fifo: true for FIFO links with dispatcher threads or in
+ * simulations (false)</li>
+ * <li>direct.delay: maximum delay in milliseconds of direct messages, which
+ * reorders them (0)</li>
+ * <li>delay: delay model of simulations, as parsed by DelayModel
+ * (exponential:100)</li>
+ * <li>interval: milliseconds of virtual time between the broadcasts of a
+ * sender in simulations (100)</li>
+ * <li>replay: trace of a previous run of the same scenario whose delivery
+ * order is replayed, in place of the dispatch (none)</li>
+ * </ul>
+ * AG networks also use:
+ * <ul>
+ * <li>candidates: either a number of processes picked at random or a comma
+ * separated list of IDs (5)</li>
+ * <li>timeout: seconds to wait for an election before giving up (600)</li>
+ * <li>sparse: true to only pulse the processes that are active or receive
+ * messages (false), see SyncNetwork</li>
+ * </ul>
+ */
+public class Scenario {
+	private final String name;
+	private final Properties properties;
+
+	public Scenario(String name, Properties properties) {
+		this.name = name;
+		this.properties = properties;
+	}
+
+	/**
+	 * Reads a scenario from a file, the name of which becomes the name of the
+	 * scenario.
+	 */
+	public static Scenario load(String path) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(path)) {
+			properties.load(in);
+		}
+		return new Scenario(path, properties);
+	}
+
+	/**
+	 * @return A copy of this scenario with a key replaced.
+	 */
+	public Scenario with(String key, String value) {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		copy.setProperty(key, value);
+		return new Scenario(name, copy);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The keys starting with a prefix, in alphabetical order.
+	 */
+	public List<String> getKeys(String prefix) {
+		List<String> keys = new ArrayList<>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				keys.add(key);
+			}
+		}
+		Collections.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             The key is missing and has no default.
+	 */
+	public String get(String key, String defaultValue) {
+		String value = properties.getProperty(key, defaultValue);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing key '" + key
+					+ "' in scenario " + name);
+		}
+		return value.trim();
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = get(key, Integer.toString(defaultValue));
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Key '" + key
+					+ "' must be a number in scenario " + name);
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(get(key, Boolean.toString(defaultValue)));
+	}
+
+	/**
+	 * Reads a set of process IDs, given either as a count of processes to be
+	 * picked at random or as a comma separated list (a single ID needs a
+	 * trailing comma, e.g. "7,").
+	 * 
+	 * @param processes
+	 *            The size of the network, IDs going from 1 to it.
+	 * @return Distinct IDs, in the order given or picked.
+	 */
+	public List<Integer> getIds(String key, int defaultCount, int processes,
+			Random random) {
+		String value = get(key, Integer.toString(defaultCount));
+		LinkedHashSet<Integer> ids = new LinkedHashSet<>();
+
+		if (value.contains(",")) {
+			for (String id : value.split(",")) {
+				ids.add(Integer.parseInt(id.trim()));
+			}
+		} else {
+			int count = Math.min(getInt(key, defaultCount), processes);
+			while (ids.size() < count) {
+				ids.add(random.nextInt(processes) + 1);
+			}
+		}
+
+		for (int id : ids) {
+			if (id < 1 || id > processes) {
+				throw new IllegalArgumentException("ID " + id + " of key '"
+						+ key + "' is not in the network in scenario " + name);
+			}
+		}
+		return new ArrayList<>(ids);
+	}
+}
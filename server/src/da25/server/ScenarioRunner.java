@@ -0,0 +1,408 @@
+package da25.server;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import da25.base.Constants;
+import da25.base.exceptions.DuplicateIDException;
+import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+import da25.base.trace.Trace;
+import da25.process.AgProcess;
+import da25.process.BssProcess;
+
+/**
+ * Runs scenarios against in-process networks, without RMI and without reading
+ * commands from the standard input, and reports the results of every run as a
+ * line of JSON.
+ * <p>
+ * Usage: ScenarioRunner file [key=value...], where the optional pairs override
+ * the keys of the scenario file (see Scenario for the keys).
+ * <p>
+ * Every report holds the scenario, the run, the wall time, the number of
+ * messages delivered and the rate at which they were delivered, and the time
+ * spent in each phase of the run, all durations being in milliseconds. BSS
+ * runs also report the messages left in the buffers (always zero unless
+ * causal delivery is broken) and the deepest buffer of a process, AG runs
+ * the elected process, the number of rounds and the mean number of processes
+ * pulsed by a round.
+ */
+public class ScenarioRunner {
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: ScenarioRunner file [key=value...]");
+			System.exit(1);
+		}
+
+		Scenario scenario = Scenario.load(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			int separator = args[i].indexOf('=');
+			if (separator < 0) {
+				System.err.println("Expected key=value instead of '" + args[i]
+						+ "'");
+				System.exit(1);
+			}
+			scenario = scenario.with(args[i].substring(0, separator),
+					args[i].substring(separator + 1));
+		}
+
+		String output = scenario.get("output", "");
+		PrintWriter out = new PrintWriter(output.isEmpty() ? new StdoutWriter()
+				: new FileWriter(output, true));
+		try {
+			for (Report report : run(scenario)) {
+				out.println(report);
+			}
+		} finally {
+			out.close();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the warm-up runs and then the measured runs of a scenario.
+	 * 
+	 * @return The reports of the measured runs.
+	 */
+	public static List<Report> run(Scenario scenario) throws LockedException,
+			DuplicateIDException, IOException, InterruptedException {
+		int previousLevel = EventLog.getLevel();
+		EventLog.setLevel(EventLog.parseLevel(scenario.get("log", "off")));
+
+		try {
+			int warmup = scenario.getInt("warmup", 0);
+			int runs = scenario.getInt("runs", 1);
+			List<Report> reports = new ArrayList<>(runs);
+			for (int run = -warmup; run < runs; run++) {
+				Report report = runOnce(scenario, run);
+				if (run >= 0) {
+					reports.add(report);
+				}
+			}
+			return reports;
+		} finally {
+			EventLog.flush();
+			EventLog.setLevel(previousLevel);
+		}
+	}
+
+	/**
+	 * Performs a single run, leaving the level of the event log as it is, so
+	 * that runs performed at the same time (see SweepRunner) don't change it
+	 * under each other.
+	 * 
+	 * @param run
+	 *            The index of the run, negative for warm-up runs.
+	 */
+	static Report runOnce(Scenario scenario, int run)
+			throws LockedException, DuplicateIDException, IOException,
+			InterruptedException {
+		String type = scenario.get("network", null);
+		String trace = scenario.get("trace", "");
+		if (!trace.isEmpty() && run >= 0) {
+			Trace.start(scenario.getInt("runs", 1) > 1 ? trace + "." + run
+					: trace);
+		}
+
+		Report report = new Report();
+		report.put("scenario", scenario.getName());
+		report.put("network", type);
+		report.put("run", run);
+		report.put("processes", scenario.getInt("processes", 10));
+
+		try {
+			switch (type) {
+			case "bss":
+				runBss(scenario, report);
+				break;
+			case "ag":
+				runAg(scenario, report);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown network '" + type
+						+ "' in scenario " + scenario.getName());
+			}
+		} finally {
+			Trace.stop();
+		}
+		return report;
+	}
+
+	private static void runBss(Scenario scenario, Report report)
+			throws LockedException, DuplicateIDException, IOException,
+			InterruptedException {
+		int size = scenario.getInt("processes", 10);
+		int broadcasts = scenario.getInt("broadcasts", 20);
+		String dispatch = scenario.get("dispatch", "random");
+		long seed = scenario.getInt("seed", 1);
+		Random random = new Random(seed);
+
+		BssNetwork network = new BssNetwork();
+		network.rnd = new Random(seed);
+		network.compressClocks = scenario.getBoolean("compress", false);
+		network.dispatchDelay = 0;
+		network.dispatchThreads = scenario.getInt("dispatch.threads", 4);
+		network.fifoLinks = scenario.getBoolean("dispatch.fifo", false);
+		String replay = scenario.get("replay", "");
+		if (!replay.isEmpty()) {
+			dispatch = "replay";
+		} else if (dispatch.equals("simulated")) {
+			runSimulatedBss(scenario, report, network, random);
+			return;
+		}
+		if (dispatch.equals("direct")) {
+			network.directDelay = scenario.getInt("direct.delay", 0);
+		} else if (!dispatch.equals("sequential") && !dispatch.equals("random")
+				&& !dispatch.equals("threads") && !dispatch.equals("replay")) {
+			throw new IllegalArgumentException("Unknown dispatch '" + dispatch
+					+ "' in scenario " + scenario.getName());
+		}
+
+		long start = System.nanoTime();
+		network.populateNetwork(size);
+		List<Integer> senders = scenario.getIds("senders", 5, size, random);
+		long populated = System.nanoTime();
+
+		if (dispatch.equals("threads")) {
+			network.startDispatchers();
+		} else if (dispatch.equals("replay")) {
+			network.startReplay(replay);
+		}
+
+		long sendNanos = 0;
+		long deliverNanos = 0;
+		for (int i = 0; i < broadcasts; i++) {
+			for (int sender : senders) {
+				long before = System.nanoTime();
+				network.processes.get(sender).sendMessage(Constants.BROADCAST,
+						"Broadcast " + i + " from " + sender);
+				sendNanos += System.nanoTime() - before;
+			}
+
+			long before = System.nanoTime();
+			switch (dispatch) {
+			case "sequential":
+				network.forwardAllSequentially();
+				break;
+			case "random":
+				network.forwardAllRandomly();
+				break;
+			}
+			deliverNanos += System.nanoTime() - before;
+		}
+		long sent = System.nanoTime();
+
+		if (dispatch.equals("threads")) {
+			while (!network.queue.isEmpty()) {
+				Thread.sleep(1);
+			}
+			network.stopDispatchers();
+		} else if (dispatch.equals("replay")) {
+			network.stopReplay();
+		} else if (dispatch.equals("direct")) {
+			while (directInFlight(network, size) > 0) {
+				Thread.sleep(1);
+			}
+		}
+		long end = System.nanoTime();
+
+		int buffered = 0;
+		int peakBuffered = 0;
+		for (int id = 1; id <= size; id++) {
+			BssProcess process = (BssProcess) network.processes.get(id);
+			buffered += process.getBufferSize();
+			peakBuffered = Math.max(peakBuffered, process.getPeakBufferSize());
+		}
+		network.shutdown();
+
+		long messages = network.metrics.getMessagesForwarded();
+		if (dispatch.equals("direct")) {
+			for (int id = 1; id <= size; id++) {
+				messages += ((BssProcess) network.processes.get(id)).direct
+						.getMessagesSent();
+			}
+		}
+		report.put("senders", senders.size());
+		report.put("broadcasts", broadcasts);
+		report.put("dispatch", dispatch);
+		if (dispatch.equals("direct")) {
+			report.put("directDelay", network.directDelay);
+		}
+		report.put("compress", network.compressClocks);
+		report.putMillis("wallMillis", end - start);
+		report.put("messages", messages);
+		report.put("messagesPerSecond", rate(messages, end - populated));
+		report.put("buffered", buffered);
+		report.put("peakBuffered", peakBuffered);
+		report.put("phases", new Report()
+				.putMillis("populate", populated - start)
+				.putMillis("send", sendNanos)
+				.putMillis("deliver", deliverNanos)
+				.putMillis("drain", end - sent));
+	}
+
+	/**
+	 * @return The number of messages sent directly by the processes of a
+	 *         network and not delivered yet.
+	 */
+	private static int directInFlight(BssNetwork network, int size) {
+		int inFlight = 0;
+		for (int id = 1; id <= size; id++) {
+			inFlight += ((BssProcess) network.processes.get(id)).direct
+					.getInFlight();
+		}
+		return inFlight;
+	}
+
+	/**
+	 * Runs a BSS scenario in virtual time, every sender broadcasting at
+	 * regular intervals while earlier broadcasts are still being delivered.
+	 */
+	private static void runSimulatedBss(Scenario scenario, Report report,
+			final BssNetwork network, Random random) throws LockedException,
+			DuplicateIDException {
+		int size = scenario.getInt("processes", 10);
+		int broadcasts = scenario.getInt("broadcasts", 20);
+		DelayModel delays = DelayModel.parse(scenario.get("delay",
+				"exponential:100"));
+		long interval = scenario.getInt("interval", 100) * 1000000L;
+
+		long start = System.nanoTime();
+		network.populateNetwork(size);
+		List<Integer> senders = scenario.getIds("senders", 5, size, random);
+		long populated = System.nanoTime();
+
+		Simulation simulation = new Simulation(network, delays, network.rnd,
+				network.fifoLinks);
+		for (int i = 0; i < broadcasts; i++) {
+			for (final int sender : senders) {
+				final String body = "Broadcast " + i + " from " + sender;
+				simulation.schedule(i * interval, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							network.processes.get(sender).sendMessage(
+									Constants.BROADCAST, body);
+						} catch (RemoteException e) {
+							EventLog.error("Broadcast from {} failed.", sender,
+									e);
+						}
+					}
+				});
+			}
+		}
+		simulation.run();
+		long end = System.nanoTime();
+
+		int buffered = 0;
+		int peakBuffered = 0;
+		for (int id = 1; id <= size; id++) {
+			BssProcess process = (BssProcess) network.processes.get(id);
+			buffered += process.getBufferSize();
+			peakBuffered = Math.max(peakBuffered, process.getPeakBufferSize());
+		}
+		network.shutdown();
+
+		long messages = network.metrics.getMessagesForwarded();
+		report.put("senders", senders.size());
+		report.put("broadcasts", broadcasts);
+		report.put("dispatch", "simulated");
+		report.put("delay", delays.toString());
+		report.put("compress", network.compressClocks);
+		report.putMillis("wallMillis", end - start);
+		report.put("messages", messages);
+		report.put("messagesPerSecond", rate(messages, end - populated));
+		report.put("buffered", buffered);
+		report.put("peakBuffered", peakBuffered);
+		report.putMillis("virtualMillis", simulation.now());
+		report.put("events", simulation.getEventsExecuted());
+		report.put("phases", new Report()
+				.putMillis("populate", populated - start)
+				.putMillis("simulate", end - populated));
+	}
+
+	private static void runAg(Scenario scenario, Report report)
+			throws LockedException, DuplicateIDException, InterruptedException {
+		int size = scenario.getInt("processes", 10);
+		long timeout = scenario.getInt("timeout", 600) * 1000000000L;
+		Random random = new Random(scenario.getInt("seed", 1));
+
+		AgNetwork network = new AgNetwork();
+		network.setSparseRounds(scenario.getBoolean("sparse", false));
+
+		long start = System.nanoTime();
+		network.populateNetwork(size);
+		long populated = System.nanoTime();
+
+		List<AgProcess> candidates = new ArrayList<>();
+		for (int id : scenario.getIds("candidates", 5, size, random)) {
+			AgProcess candidate = (AgProcess) network.processes.get(id);
+			candidate.startCandidate();
+			candidates.add(candidate);
+		}
+		long started = System.nanoTime();
+
+		network.performCommand(null, "auto");
+		AgProcess elected = null;
+		while (elected == null && System.nanoTime() - started < timeout) {
+			for (AgProcess candidate : candidates) {
+				if (candidate.isElected()) {
+					elected = candidate;
+					break;
+				}
+			}
+			Thread.sleep(0, 100000);
+		}
+		long end = System.nanoTime();
+		network.shutdown();
+
+		SyncNetworkMetrics metrics = (SyncNetworkMetrics) network.metrics;
+		long messages = metrics.getMessagesForwarded();
+		report.put("candidates", candidates.size());
+		report.putMillis("wallMillis", end - start);
+		report.put("messages", messages);
+		report.put("messagesPerSecond", rate(messages, end - started));
+		report.put("elected", elected == null ? -1 : elected.id);
+		report.put("rounds", metrics.getRounds());
+		report.put("sparse", network.sparseRounds);
+		report.put("meanPulsed", metrics.getMeanPulsedProcesses());
+		report.put("phases", new Report()
+				.putMillis("populate", populated - start)
+				.putMillis("candidates", started - populated)
+				.putMillis("election", end - started));
+	}
+
+	private static long rate(long count, long nanos) {
+		return nanos == 0 ? 0 : count * 1000000000L / nanos;
+	}
+
+	/**
+	 * Writes to the standard output without ever closing it.
+	 */
+	static class StdoutWriter extends Writer {
+		private final PrintStream out = System.out;
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			out.print(new String(buffer, offset, length));
+		}
+
+		@Override
+		public void flush() {
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			out.flush();
+		}
+	}
+}
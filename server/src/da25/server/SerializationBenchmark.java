@@ -0,0 +1,197 @@
+package da25.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+
+import da25.base.Constants;
+import da25.base.Message;
+import da25.base.VectorClock;
+
+/**
+ * Checks that messages survive serialization unchanged and compares the size
+ * and speed of their encoding with the default serialization they used to
+ * have (a HashMap backed clock and default fields).
+ * <p>
+ * Every message is written in a stream of its own, as it happens for every
+ * RMI call. Usage: SerializationBenchmark [check | iterations]
+ * <p>
+ * If a round trip fails, the comparison is skipped and the VM exits with
+ * status 1, so that scripts can tell. With "check", only the round trips are
+ * performed.
+ */
+public class SerializationBenchmark {
+	public static void main(String[] args) throws Exception {
+		boolean checkOnly = args.length > 0 && args[0].equals("check");
+		int iterations = args.length > 0 && !checkOnly ? Integer
+				.parseInt(args[0]) : 200000;
+
+		Message[] samples = samples();
+		if (!checkRoundTrips(samples)) {
+			System.exit(1);
+		}
+		if (checkOnly) {
+			return;
+		}
+
+		for (Message message : samples) {
+			System.out.println(message + ": " + write(message).length
+					+ " bytes, was " + write(new LegacyMessage(message)).length
+					+ ".");
+		}
+
+		Message typical = samples[2];
+		Object legacy = new LegacyMessage(typical);
+		for (int run = 0; run < 2; run++) {
+			/*
+			 * The first run only warms up the VM.
+			 */
+			long current = time(typical, iterations);
+			long previous = time(legacy, iterations);
+			if (run == 1) {
+				System.out.println("Externalizable: " + iterations
+						* 1000000000L / current + " round trips per second.");
+				System.out.println("Default serialization: " + iterations
+						* 1000000000L / previous + " round trips per second.");
+			}
+		}
+	}
+
+	/**
+	 * @return True if every message was read back unchanged.
+	 */
+	private static boolean checkRoundTrips(Message[] samples)
+			throws Exception {
+		boolean passed = true;
+		for (Message message : samples) {
+			Message copy = (Message) read(write(message));
+			if (!same(message, copy)) {
+				System.out.println("Round trip failed: " + message + " became "
+						+ copy);
+				passed = false;
+			}
+		}
+		System.out.println("Round trip of " + samples.length + " messages: "
+				+ (passed ? "passed." : "FAILED."));
+		return passed;
+	}
+
+	private static Message[] samples() {
+		VectorClock full = new VectorClock();
+		for (int i = 1; i <= 5; i++) {
+			full.set(i, i * 3);
+		}
+
+		VectorClock large = new VectorClock();
+		for (int i = 1; i <= 20; i++) {
+			large.set(i, i * 1000);
+		}
+
+		VectorClock delta = new VectorClock();
+		delta.set(4, 7);
+
+		Message text = new Message(1, 2, null, "Hello");
+		Message empty = new Message(3, 1, new VectorClock(), "");
+		Message broadcast = new Message(2, Constants.BROADCAST, full,
+				"Second broadcast");
+		Message compressed = new Message(4, 3, delta, "Compressed");
+		compressed.deltaClock = true;
+		Message wide = new Message(100, 50, large, "Non-ASCII \u00e8\u20ac\u4e2d");
+		Message typed = new Message(5, 6, Constants.KIND_FIRST_CUSTOM, 12, 5);
+		Message negative = new Message(7, 8, Constants.KIND_TEXT, -1,
+				Integer.MIN_VALUE);
+		negative.body = "Negative fields";
+
+		return new Message[] { text, empty, broadcast, compressed, wide, typed,
+				negative };
+	}
+
+	private static boolean same(Message a, Message b) {
+		return a.sender == b.sender
+				&& a.recipient == b.recipient
+				&& a.kind == b.kind
+				&& a.first == b.first
+				&& a.second == b.second
+				&& a.deltaClock == b.deltaClock
+				&& (a.body == null ? b.body == null : a.body.equals(b.body))
+				&& (a.clock == null ? b.clock == null : b.clock != null
+						&& a.clock.length() == b.clock.length()
+						&& a.clock.greaterEqual(b.clock)
+						&& b.clock.greaterEqual(a.clock));
+	}
+
+	/**
+	 * @return The time needed to write and read the object the given number
+	 *         of times, in nanoseconds.
+	 */
+	private static long time(Object object, int iterations) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			read(write(object));
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static byte[] write(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object read(byte[] bytes) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes));
+		return in.readObject();
+	}
+
+	/**
+	 * The fields of a message, serialized by default as they used to be.
+	 */
+	private static class LegacyMessage implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		int sender;
+		int recipient;
+		LegacyClock clock;
+		String body;
+		int kind;
+		int first, second;
+		boolean deltaClock;
+
+		LegacyMessage(Message message) {
+			sender = message.sender;
+			recipient = message.recipient;
+			if (message.clock != null) {
+				clock = new LegacyClock(message.clock);
+			}
+			body = message.body;
+			kind = message.kind;
+			first = message.first;
+			second = message.second;
+			deltaClock = message.deltaClock;
+		}
+	}
+
+	/**
+	 * A clock backed by a HashMap, serialized by default as it used to be.
+	 */
+	private static class LegacyClock implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		HashMap<Integer, Integer> vector = new HashMap<>();
+
+		LegacyClock(VectorClock clock) {
+			for (int i = 0; i < clock.length(); i++) {
+				if (clock.get(i) != 0) {
+					vector.put(i, clock.get(i));
+				}
+			}
+		}
+	}
+}
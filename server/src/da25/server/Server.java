@@ -1,14 +1,17 @@
 package da25.server;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 
 import da25.base.NetworkInterface;
+import da25.base.log.EventLog;
+import da25.base.nio.NioLoop;
 
 /**
- * Main class for server, holding RMI logic only.
+ * Main class for server, holding RMI (or NIO transport) logic only.
  * 
  * @author Stefano Tribioli
  * @author Casper Folkers
@@ -17,6 +20,31 @@ import da25.base.NetworkInterface;
 public class Server {
 	public static Network network;
 
+	/**
+	 * Usage: Server (bss|ag) [nio [port]] [shard index count]
+	 * <p>
+	 * With "nio", clients connect through the NIO transport, by default on
+	 * NioLoop.DEFAULT_PORT, instead of looking up the network in the RMI
+	 * registry.
+	 * <p>
+	 * With "shard", the server is one of count cooperating servers sharing the
+	 * process IDs (see Shard), all of them using the RMI registry of the local
+	 * host. Each shard of a NIO network needs its own port.
+	 * <p>
+	 * The amount of output is set with -Dda25.log=(off|error|info|trace) or
+	 * with the "log" command.
+	 * <p>
+	 * A binary trace of the messages is recorded with -Dda25.trace=file or
+	 * with the "trace" command, and replayed by BSS networks with the
+	 * "replay" command.
+	 * <p>
+	 * After the "direct" command, BSS processes spawned by the server send
+	 * their messages straight to the other processes (see DirectTransport),
+	 * as clients started with the "direct" option do.
+	 * <p>
+	 * The "sparse" command turns sparse rounds on and off in AG networks, so
+	 * that the processes with nothing to do are not pulsed (see SyncNetwork).
+	 */
 	public static void main(String[] args) {
 		System.setProperty("java.rmi.server.codebase", NetworkInterface.class
 				.getProtectionDomain().getCodeSource().getLocation().toString());
@@ -29,17 +57,63 @@ public class Server {
 			network = new AgNetwork();
 			break;
 		default:
-			System.out.println("No assignment specified.");
+			EventLog.error("No assignment specified.");
 		}
 
-		try {
-			NetworkInterface stub = (NetworkInterface) UnicastRemoteObject
-					.exportObject(network, 0);
-			Registry registry = LocateRegistry.getRegistry();
-			registry.rebind(NetworkInterface.class.getCanonicalName(), stub);
-		} catch (RemoteException e) {
-			System.out.println("Unable to init RMI environment.");
-			throw new RuntimeException(e);
+		int port = -1;
+		Shard shard = null;
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+			case "nio":
+				port = NioLoop.DEFAULT_PORT;
+				if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+					port = Integer.parseInt(args[++i]);
+				}
+				break;
+			case "shard":
+				shard = new Shard(network, Integer.parseInt(args[i + 1]),
+						Integer.parseInt(args[i + 2]));
+				i += 2;
+				break;
+			default:
+				EventLog.error("Unknown option: '{}'", args[i]);
+				return;
+			}
+		}
+
+		if (shard != null) {
+			network.setShard(shard);
+			try {
+				ShardInterface shardStub = (ShardInterface) UnicastRemoteObject
+						.exportObject(shard, 0);
+				LocateRegistry.getRegistry().rebind(
+						Shard.bindingName(shard.getIndex()), shardStub);
+			} catch (RemoteException e) {
+				EventLog.error("Unable to init RMI environment.");
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (port >= 0) {
+			try {
+				new NioNetworkServer(network, port).start();
+			} catch (IOException e) {
+				EventLog.error("Unable to init NIO environment.");
+				throw new RuntimeException(e);
+			}
+		} else {
+			try {
+				NetworkInterface stub = (NetworkInterface) UnicastRemoteObject
+						.exportObject(network, 0);
+				Registry registry = LocateRegistry.getRegistry();
+				registry.rebind(
+						shard == null ? NetworkInterface.class
+								.getCanonicalName() : Shard
+								.networkBindingName(shard.getIndex()), stub);
+			} catch (RemoteException e) {
+				EventLog.error("Unable to init RMI environment.");
+				throw new RuntimeException(e);
+			}
 		}
 
 		network.start();
@@ -0,0 +1,380 @@
+package da25.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import da25.base.Message;
+import da25.base.NetworkInterface;
+import da25.base.log.EventLog;
+
+/**
+ * One of several cooperating networks, each running in its own server VM and
+ * owning a part of the process IDs: process ID i belongs to shard (i - 1) %
+ * count, which assigns it and forwards the messages addressed to it.
+ * <p>
+ * Messages for processes of other shards are appended to one batch per shard
+ * and handed over by a single link thread, which sends every batch as soon as
+ * it is free, so batches grow with the load. Broadcasts are handed to every
+ * other shard once, and expanded by each of them for its own processes.
+ * <p>
+ * Shard 0 coordinates synchronous networks: each shard reports to it once all
+ * its processes are ready and their messages handed over, and it starts every
+ * round on all the shards. Messages sent by a shard already in the next round
+ * are held by the receiving shard until it starts that round too.
+ * <p>
+ * Shards find each other in the RMI registry under the names given by
+ * bindingName(), and the network of every shard is bound under
+ * networkBindingName() for its clients.
+ */
+public class Shard implements ShardInterface {
+	private final Network network;
+	private final int index;
+	private final int count;
+
+	/**
+	 * Stubs of the other shards, looked up on first use, this one being
+	 * itself.
+	 */
+	private final ShardInterface[] peers;
+
+	/**
+	 * Messages waiting to be handed to every shard, guarded by the array.
+	 */
+	private final ArrayList<Message>[] outbound;
+
+	/**
+	 * True for the shards whose batch is already scheduled to be sent,
+	 * guarded by outbound.
+	 */
+	private final boolean[] scheduled;
+
+	/**
+	 * Single thread making all the calls to other shards, in order.
+	 */
+	private final ExecutorService link = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Shard link");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Number of shards ready for the next round, only used by the
+	 * coordinator.
+	 */
+	private int readyShards = 0;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Shard(Network network, int index, int count) {
+		if (index < 0 || index >= count) {
+			throw new IllegalArgumentException("Shard " + index
+					+ " out of range for " + count + " shards");
+		}
+
+		this.network = network;
+		this.index = index;
+		this.count = count;
+		peers = new ShardInterface[count];
+		peers[index] = this;
+		outbound = new ArrayList[count];
+		for (int i = 0; i < count; i++) {
+			outbound[i] = new ArrayList<>();
+		}
+		scheduled = new boolean[count];
+	}
+
+	/**
+	 * @return The name shard i is bound to in the registry.
+	 */
+	public static String bindingName(int i) {
+		return ShardInterface.class.getCanonicalName() + "/" + i;
+	}
+
+	/**
+	 * @return The name the network of shard i is bound to in the registry.
+	 */
+	public static String networkBindingName(int i) {
+		return NetworkInterface.class.getCanonicalName() + "/" + i;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public boolean isCoordinator() {
+		return index == 0;
+	}
+
+	/**
+	 * @return The shard owning a process ID, which must be positive.
+	 */
+	public int owner(int id) {
+		return (id - 1) % count;
+	}
+
+	public boolean isLocal(int id) {
+		return id > 0 && owner(id) == index;
+	}
+
+	/**
+	 * @return True if a message to the ID must be routed to another shard.
+	 *         IDs below 1 belong to no shard, so messages to them stay here
+	 *         and fail as missing recipients, as in networks that are not
+	 *         sharded.
+	 */
+	public boolean isRemote(int id) {
+		return id > 0 && owner(id) != index;
+	}
+
+	/**
+	 * @return The smallest ID owned by this shard greater than the given one.
+	 */
+	public int nextLocalId(int id) {
+		int next = id + 1;
+		return next + (index - owner(next) + count) % count;
+	}
+
+	/**
+	 * Hands a message to the shard owning its recipient.
+	 */
+	void route(Message message) {
+		append(owner(message.recipient), message);
+	}
+
+	/**
+	 * Hands a broadcast to every other shard.
+	 */
+	void routeBroadcast(Message message) {
+		for (int i = 0; i < count; i++) {
+			if (i != index) {
+				append(i, message);
+			}
+		}
+	}
+
+	private void append(final int shard, Message message) {
+		synchronized (outbound) {
+			outbound[shard].add(message);
+			if (scheduled[shard]) {
+				return;
+			}
+			scheduled[shard] = true;
+		}
+
+		link.execute(new Runnable() {
+			@Override
+			public void run() {
+				send(shard);
+			}
+		});
+	}
+
+	/**
+	 * Sends the pending batch of a shard, on the link thread.
+	 */
+	private void send(int shard) {
+		ArrayList<Message> batch;
+		synchronized (outbound) {
+			batch = outbound[shard];
+			outbound[shard] = new ArrayList<>();
+			scheduled[shard] = false;
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		try {
+			peer(shard).forwardBatch(network.getRound(), batch);
+			network.metrics.shardBatches.increment();
+			network.metrics.shardMessages.add(batch.size());
+		} catch (RemoteException | NotBoundException e) {
+			network.metrics.remoteException.add(batch.size());
+			EventLog.error("Unable to hand {} messages to shard {}",
+					batch.size(), shard, e);
+		}
+	}
+
+	/**
+	 * Sends all the pending batches, on the link thread.
+	 */
+	private void sendAll() {
+		for (int i = 0; i < count; i++) {
+			if (i != index) {
+				send(i);
+			}
+		}
+	}
+
+	private ShardInterface peer(int shard) throws RemoteException,
+			NotBoundException {
+		synchronized (peers) {
+			if (peers[shard] == null) {
+				Registry registry = LocateRegistry.getRegistry();
+				peers[shard] = (ShardInterface) registry
+						.lookup(bindingName(shard));
+			}
+			return peers[shard];
+		}
+	}
+
+	/**
+	 * @return The IDs of the processes of all the shards.
+	 */
+	int[] getAllIds() throws RemoteException {
+		ArrayList<int[]> parts = new ArrayList<>(count);
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			int[] part;
+			try {
+				part = peer(i).getLocalIds();
+			} catch (NotBoundException e) {
+				throw new RemoteException("Shard " + i + " is not running", e);
+			}
+			parts.add(part);
+			total += part.length;
+		}
+
+		int[] ids = new int[total];
+		int position = 0;
+		for (int[] part : parts) {
+			System.arraycopy(part, 0, ids, position, part.length);
+			position += part.length;
+		}
+		return ids;
+	}
+
+	/**
+	 * Locks all the other shards, in the background.
+	 */
+	void lockOthers() {
+		link.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					if (i != index) {
+						try {
+							peer(i).lock();
+						} catch (RemoteException | NotBoundException e) {
+							EventLog.error("Unable to lock shard {}", i, e);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * All the local processes are ready: hands over their messages, then
+	 * tells the coordinator.
+	 */
+	void localReady() {
+		link.execute(new Runnable() {
+			@Override
+			public void run() {
+				sendAll();
+				try {
+					peer(0).shardReady(index);
+				} catch (RemoteException | NotBoundException e) {
+					EventLog.error("Unable to reach the coordinator", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts the next round on all the shards, only called on the
+	 * coordinator.
+	 */
+	void startRoundEverywhere() {
+		link.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					try {
+						peer(i).startRound();
+					} catch (RemoteException | NotBoundException e) {
+						EventLog.error("Unable to start round on shard {}", i,
+								e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a "round" or "auto" command to the coordinator.
+	 */
+	void forwardRoundCommand(final String command) {
+		link.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					peer(0).roundCommand(command);
+				} catch (RemoteException | NotBoundException e) {
+					EventLog.error("Unable to reach the coordinator", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the link thread, dropping the batches not sent yet.
+	 */
+	void shutdown() {
+		link.shutdownNow();
+	}
+
+	@Override
+	public void forwardBatch(long round, List<Message> messages) {
+		network.acceptFromShard(round, messages);
+	}
+
+	@Override
+	public int[] getLocalIds() {
+		return network.getMembers();
+	}
+
+	@Override
+	public void lock() {
+		network.lock();
+	}
+
+	@Override
+	public void shardReady(int shard) {
+		boolean all;
+		synchronized (this) {
+			all = ++readyShards == count;
+			if (all) {
+				readyShards = 0;
+			}
+		}
+
+		if (all) {
+			((SyncNetwork) network).roundReady();
+		}
+	}
+
+	@Override
+	public void startRound() {
+		((SyncNetwork) network).nextRound();
+	}
+
+	@Override
+	public void roundCommand(String command) {
+		network.performCommand(null, command);
+	}
+}
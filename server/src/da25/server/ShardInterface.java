@@ -0,0 +1,54 @@
+package da25.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import da25.base.Message;
+
+/**
+ * Interface through which the shards of a network (see Shard) talk to each
+ * other.
+ */
+public interface ShardInterface extends Remote {
+	/**
+	 * Hands over messages sent by processes of another shard, in the order
+	 * they were sent. Broadcasts are delivered to all the processes of this
+	 * shard, the other messages to their recipients.
+	 * 
+	 * @param round
+	 *            The round the sending shard was in when the messages were
+	 *            sent, ignored by asynchronous networks.
+	 */
+	public void forwardBatch(long round, List<Message> messages)
+			throws RemoteException;
+
+	/**
+	 * @return The IDs of the processes registered with this shard.
+	 */
+	public int[] getLocalIds() throws RemoteException;
+
+	/**
+	 * Locks the shard, another one having been locked.
+	 */
+	public void lock() throws RemoteException;
+
+	/**
+	 * Signals to the coordinator that all the processes of a shard are ready
+	 * for the next round, and that their messages have been handed over to
+	 * their shards.
+	 */
+	public void shardReady(int shard) throws RemoteException;
+
+	/**
+	 * Starts the next round, called by the coordinator on every shard once all
+	 * of them are ready.
+	 */
+	public void startRound() throws RemoteException;
+
+	/**
+	 * Performs a "round" or "auto" command typed on another shard, only called
+	 * on the coordinator.
+	 */
+	public void roundCommand(String command) throws RemoteException;
+}
@@ -0,0 +1,189 @@
+package da25.server;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import da25.base.Message;
+
+/**
+ * Discrete-event simulation of an asynchronous network in virtual time.
+ * <p>
+ * Instead of dispatcher threads sleeping between deliveries, every message
+ * taken from the queue of the network is scheduled for delivery after a delay
+ * drawn from a DelayModel, and events are executed one at a time in order of
+ * virtual time, the clock jumping straight to the next event. A run takes as
+ * long as the processes need to handle the messages, and the same seed and
+ * the same scheduled actions always give the same delivery order.
+ * <p>
+ * The simulation is driven by the single thread calling run(), which must be
+ * the only one dispatching messages of the network meanwhile. Messages sent
+ * by processes during a delivery are queued by the network as usual and
+ * scheduled at the time of that delivery.
+ */
+public class Simulation {
+	private final Network network;
+
+	private final DelayModel delays;
+
+	private final Random rnd;
+
+	/**
+	 * If true, messages between the same pair of processes are delivered in
+	 * the order they were sent, whatever their delays.
+	 */
+	private final boolean fifoLinks;
+
+	/**
+	 * Time of the last delivery scheduled on every link, only used with FIFO
+	 * links.
+	 */
+	private final HashMap<Long, Long> linkTimes = new HashMap<>();
+
+	private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+	/**
+	 * Current virtual time, in nanoseconds since the start of the simulation.
+	 */
+	private long now = 0;
+
+	/**
+	 * Number of events scheduled so far, breaking ties between events
+	 * scheduled at the same time in favour of the older one.
+	 */
+	private long scheduled = 0;
+
+	private long executed = 0;
+
+	/**
+	 * @param network
+	 *            The network whose queue feeds the simulation.
+	 * @param delays
+	 *            The distribution of message delays.
+	 * @param rnd
+	 *            The source of randomness of delays, which should be seeded
+	 *            for the run to be reproducible.
+	 * @param fifoLinks
+	 *            True to keep the order of messages on every link.
+	 */
+	public Simulation(Network network, DelayModel delays, Random rnd,
+			boolean fifoLinks) {
+		this.network = network;
+		this.delays = delays;
+		this.rnd = rnd;
+		this.fifoLinks = fifoLinks;
+	}
+
+	/**
+	 * @return The current virtual time, in nanoseconds.
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * @return The number of events (deliveries and actions) executed.
+	 */
+	public long getEventsExecuted() {
+		return executed;
+	}
+
+	/**
+	 * @return The number of events waiting to be executed.
+	 */
+	public int getPendingEvents() {
+		return events.size();
+	}
+
+	/**
+	 * Schedules an action, e.g. a process sending a message, at the given
+	 * virtual time, or now if it is already past.
+	 */
+	public void schedule(long time, Runnable action) {
+		events.add(new Event(Math.max(time, now), scheduled++, null, action));
+	}
+
+	/**
+	 * Executes events in order of virtual time until none is left.
+	 * 
+	 * @return The virtual time of the last event.
+	 */
+	public long run() {
+		return run(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Executes events in order of virtual time, stopping before the first
+	 * event later than the given time.
+	 * 
+	 * @return The virtual time of the last event executed.
+	 */
+	public long run(long until) {
+		while (true) {
+			admitQueued();
+
+			Event event = events.peek();
+			if (event == null || event.time > until) {
+				return now;
+			}
+
+			events.poll();
+			now = event.time;
+			executed++;
+			if (event.message != null) {
+				network.forwardMessage(event.message);
+			} else {
+				event.action.run();
+			}
+		}
+	}
+
+	/**
+	 * Moves the messages queued by the network into the simulation, in order
+	 * of arrival, drawing their delays.
+	 */
+	private void admitQueued() {
+		synchronized (network.queue) {
+			while (!network.queue.isEmpty()) {
+				Message message = network.queue.removeFirst();
+				long time = now + delays.next(message, rnd);
+				if (fifoLinks) {
+					Long link = ((long) message.sender << 32)
+							| (message.recipient & 0xFFFFFFFFL);
+					Long last = linkTimes.get(link);
+					if (last != null && last > time) {
+						time = last;
+					}
+					linkTimes.put(link, time);
+				}
+				events.add(new Event(time, scheduled++, message, null));
+			}
+		}
+	}
+
+	/**
+	 * A delivery or an action, executed at a given virtual time.
+	 */
+	private static final class Event implements Comparable<Event> {
+		final long time;
+		final long sequence;
+		final Message message;
+		final Runnable action;
+
+		Event(long time, long sequence, Message message, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.message = message;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1
+					: (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package da25.server;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import da25.base.exceptions.DuplicateIDException;
+import da25.base.exceptions.LockedException;
+import da25.base.log.EventLog;
+
+/**
+ * Runs a scenario over a grid of parameters, every combination of the values
+ * of the swept keys being run several times with different seeds, each run on
+ * its own in-process network, several runs at the same time. Every run is
+ * written as a line of CSV.
+ * <p>
+ * Usage: SweepRunner file [key=value...], where the optional pairs override
+ * the keys of the scenario file, as with ScenarioRunner. On top of the keys of
+ * Scenario, sweeps use:
+ * <ul>
+ * <li>sweep.key: the values of a key of the scenario, separated by spaces,
+ * e.g. "sweep.processes=100 1000" (none)</li>
+ * <li>runs: number of runs of every combination (1), the seed of the first
+ * one being the value of "seed" and the next ones the following values</li>
+ * <li>warmup: number of runs of the first combination before the sweep, not
+ * reported (0)</li>
+ * <li>threads: number of runs at the same time (the number of
+ * processors)</li>
+ * <li>output: file the CSV is written to, replacing it (standard output)</li>
+ * </ul>
+ * The columns are the swept keys, the seed, the run, then the values of the
+ * reports of ScenarioRunner, nested reports being flattened (e.g.
+ * phases.populate). A value that some runs don't report, such as the delay of
+ * direct links, is left empty in the others.
+ * <p>
+ * Traces are recorded by a single writer for the whole VM, so the "trace"
+ * key is not available to sweeps. The level of the event log is set once for
+ * the whole sweep, and the networks of the runs are never started, so they
+ * don't register their processes as MBeans, which would replace each other's
+ * and keep finished runs reachable.
+ */
+public class SweepRunner {
+	private static final String SWEEP = "sweep.";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: SweepRunner file [key=value...]");
+			System.exit(1);
+		}
+
+		Scenario scenario = Scenario.load(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			int separator = args[i].indexOf('=');
+			if (separator < 0) {
+				System.err.println("Expected key=value instead of '" + args[i]
+						+ "'");
+				System.exit(1);
+			}
+			scenario = scenario.with(args[i].substring(0, separator),
+					args[i].substring(separator + 1));
+		}
+
+		String output = scenario.get("output", "");
+		PrintWriter out = new PrintWriter(output.isEmpty()
+				? new ScenarioRunner.StdoutWriter() : new FileWriter(output));
+		try {
+			writeCsv(out, sweep(scenario));
+		} finally {
+			out.close();
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the warm-up runs, and then every run of every combination on a
+	 * pool of threads.
+	 * 
+	 * @return One report per run, with the swept values, the seed and the
+	 *         run followed by the flattened report of ScenarioRunner, in the
+	 *         order of the combinations and then of the runs, whatever the
+	 *         order they completed in.
+	 */
+	public static List<Report> sweep(Scenario scenario)
+			throws LockedException, DuplicateIDException, IOException,
+			InterruptedException, ExecutionException {
+		if (!scenario.get("trace", "").isEmpty()) {
+			throw new IllegalArgumentException(
+					"Traces can't be recorded by sweeps, in scenario "
+							+ scenario.getName());
+		}
+
+		List<String> swept = new ArrayList<>();
+		for (String key : scenario.getKeys(SWEEP)) {
+			swept.add(key.substring(SWEEP.length()));
+		}
+		List<Scenario> combinations = combinations(scenario);
+		int runs = scenario.getInt("runs", 1);
+		int warmup = scenario.getInt("warmup", 0);
+		int seed = scenario.getInt("seed", 1);
+		int threads = scenario.getInt("threads", Runtime.getRuntime()
+				.availableProcessors());
+
+		int previousLevel = EventLog.getLevel();
+		EventLog.setLevel(EventLog.parseLevel(scenario.get("log", "off")));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int run = -warmup; run < 0; run++) {
+				ScenarioRunner.runOnce(combinations.get(0), run);
+			}
+
+			List<Future<Report>> futures = new ArrayList<>();
+			for (Scenario combination : combinations) {
+				for (int run = 0; run < runs; run++) {
+					futures.add(pool.submit(new Run(combination, swept, seed
+							+ run, run)));
+				}
+			}
+
+			List<Report> reports = new ArrayList<>(futures.size());
+			for (Future<Report> future : futures) {
+				reports.add(future.get());
+			}
+			return reports;
+		} finally {
+			pool.shutdownNow();
+			EventLog.flush();
+			EventLog.setLevel(previousLevel);
+		}
+	}
+
+	/**
+	 * @return A scenario per combination of the values of the swept keys, the
+	 *         values of the last key in alphabetical order changing first.
+	 */
+	static List<Scenario> combinations(Scenario scenario) {
+		List<Scenario> combinations = new ArrayList<>();
+		combinations.add(scenario);
+		for (String sweepKey : scenario.getKeys(SWEEP)) {
+			String key = sweepKey.substring(SWEEP.length());
+			String[] values = scenario.get(sweepKey, null).split("\\s+");
+
+			List<Scenario> expanded = new ArrayList<>();
+			for (Scenario combination : combinations) {
+				for (String value : values) {
+					expanded.add(combination.with(key, value));
+				}
+			}
+			combinations = expanded;
+		}
+		return combinations;
+	}
+
+	/**
+	 * Writes reports as CSV, with a header naming the columns, which are all
+	 * the names found in the reports, in the order they first appear.
+	 */
+	static void writeCsv(PrintWriter out, List<Report> reports) {
+		LinkedHashSet<String> columns = new LinkedHashSet<>();
+		for (Report report : reports) {
+			columns.addAll(report.getNames());
+		}
+
+		StringBuilder line = new StringBuilder();
+		for (String column : columns) {
+			if (line.length() > 0) {
+				line.append(',');
+			}
+			line.append(csv(column));
+		}
+		out.println(line);
+
+		for (Report report : reports) {
+			line.setLength(0);
+			boolean first = true;
+			for (String column : columns) {
+				if (!first) {
+					line.append(',');
+				}
+				first = false;
+
+				Object value = report.get(column);
+				if (value != null) {
+					line.append(csv(value.toString()));
+				}
+			}
+			out.println(line);
+		}
+	}
+
+	/**
+	 * @return The value, quoted if it holds a comma, a quote or a line break.
+	 */
+	private static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+				&& value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * A single run of a combination, with its own seed.
+	 */
+	private static class Run implements Callable<Report> {
+		private final Scenario scenario;
+		private final List<String> swept;
+		private final int seed;
+		private final int run;
+
+		Run(Scenario combination, List<String> swept, int seed, int run) {
+			this.scenario = combination.with("seed", Integer.toString(seed))
+					.with("runs", "1").with("warmup", "0");
+			this.swept = swept;
+			this.seed = seed;
+			this.run = run;
+		}
+
+		@Override
+		public Report call() throws Exception {
+			Report row = new Report();
+			for (String key : swept) {
+				row.put(key, scenario.get(key, null));
+			}
+			row.put("seed", seed);
+			row.put("run", run);
+
+			Report flat = ScenarioRunner.runOnce(scenario, run).flatten();
+			for (String name : flat.getNames()) {
+				if (row.get(name) == null) {
+					row.put(name, flat.get(name));
+				}
+			}
+			return row;
+		}
+	}
+}
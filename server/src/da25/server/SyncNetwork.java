@@ -1,13 +1,26 @@
 package da25.server;
 
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import da25.base.Constants;
 import da25.base.Message;
+import da25.base.Outbox;
 import da25.base.ProcessInterface;
-import da25.base.VectorClock;
+import da25.base.log.EventLog;
+import da25.base.trace.Trace;
 import da25.process.Process;
 
 /**
@@ -20,9 +33,56 @@ import da25.process.Process;
 public class SyncNetwork extends Network {
 	/**
 	 * Keeps track of the number of processes who have already signalled to be
-	 * ready.
+	 * ready. It is the barrier of the round: it is counted without any lock,
+	 * and the process completing it starts the next round.
 	 */
-	private int readyCount = 0;
+	private final AtomicInteger readyCount = new AtomicInteger();
+
+	/**
+	 * Number of processes pulsed by the current round, all of which must
+	 * signal to be ready before the next one starts.
+	 */
+	private volatile int expectedReady = 0;
+
+	/**
+	 * With sparse rounds, a process submitting a quiescent outbox (see
+	 * Outbox.quiescent) is no longer pulsed, except in the rounds delivering
+	 * messages to it, until it sends a Constants.WAKE_ROUND control message:
+	 * a round then costs time in the number of active processes and of
+	 * messages, rather than in the size of the network. Only available to
+	 * networks that are not sharded.
+	 */
+	protected volatile boolean sparseRounds = false;
+
+	/**
+	 * IDs of the processes pulsed every round, only kept with sparse rounds.
+	 */
+	private final Set<Integer> active = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/**
+	 * True if the last round had no process to pulse, in which case no
+	 * process will ever signal to be ready: the next round starts once a
+	 * process wakes up, or with a "round" command.
+	 */
+	private boolean idle = false;
+
+	/**
+	 * True once every process, of every shard if the network is sharded, has
+	 * signalled to be ready and the next round has not started yet.
+	 */
+	private boolean ready = false;
+
+	/**
+	 * Number of rounds started so far.
+	 */
+	private volatile long round = 0;
+
+	/**
+	 * Messages handed over by shards already in a later round, with that
+	 * round, queued once this network starts it too.
+	 */
+	private ArrayList<HeldBatch> heldBatches = new ArrayList<>();
 
 	/**
 	 * If positive, the network will proceed to the next round as soon as all
@@ -33,49 +93,145 @@ public class SyncNetwork extends Network {
 	 */
 	private int autoMode = -1;
 
+	/**
+	 * Number of threads delivering the messages of a round in parallel.
+	 */
+	protected int deliveryThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Threads delivering the messages of a round, created on the first one.
+	 */
+	private ExecutorService deliveryPool = null;
+
+	/**
+	 * Value of System.nanoTime() when the current round started, or zero
+	 * before the first one.
+	 */
+	private volatile long roundStart = 0;
+
 	public SyncNetwork(Class<? extends Process> processClass) {
 		super(processClass);
 	}
 
+	@Override
+	protected NetworkMetrics createMetrics() {
+		return new SyncNetworkMetrics();
+	}
+
 	@Override
 	synchronized protected boolean performCommand(Scanner scanner,
 			String command) {
 		switch (command) {
 		case "round":
-			if (readyCount == processes.size()) {
-				nextRound();
+			if (shard != null && !shard.isCoordinator()) {
+				shard.forwardRoundCommand(command);
+			} else if (ready) {
+				startRound();
 			} else {
 				autoMode = 0;
 			}
 			return true;
 		case "auto":
+			if (shard != null && !shard.isCoordinator()) {
+				shard.forwardRoundCommand(command);
+				return true;
+			}
 			autoMode = +1;
-			if (readyCount == processes.size()) {
-				nextRound();
+			if (ready) {
+				startRound();
 			}
 			return true;
+		case "sparse":
+			setSparseRounds(!sparseRounds);
+			EventLog.info("Sparse rounds are now {}.", sparseRounds ? "on"
+					: "off");
+			return true;
 		default:
 			return super.performCommand(scanner, command);
 		}
 	}
 
 	@Override
-	public void lock() {
-		super.lock();
-		readyCount = processes.size();
+	synchronized public void shutdown() {
+		if (deliveryPool != null) {
+			deliveryPool.shutdown();
+			deliveryPool = null;
+		}
+		super.shutdown();
+	}
+
+	/**
+	 * Turns sparse rounds on or off. Every process is pulsed again from the
+	 * next round on, until it declares itself quiescent.
+	 */
+	synchronized public void setSparseRounds(boolean sparse) {
+		if (sparse && shard != null) {
+			EventLog.error("Sparse rounds are not available to sharded networks.");
+			return;
+		}
+
+		sparseRounds = sparse;
+		if (sparse) {
+			active.addAll(processes.keySet());
+		}
 	}
 
 	@Override
-	synchronized protected void processControlMessage(Message message) {
-		switch (message.body) {
-		case Constants.READY_ROUND:
-			readyCount++;
-			if (autoMode >= 0 && readyCount == processes.size()) {
-				if (autoMode == 0) {
-					autoMode = -1;
+	synchronized protected void locked() {
+		if (sparseRounds) {
+			active.addAll(processes.keySet());
+		}
+		expectedReady = processes.size();
+		readyCount.set(processes.size());
+		if (shard == null) {
+			ready = true;
+		} else {
+			shard.localReady();
+		}
+	}
+
+	@Override
+	protected long getRound() {
+		return round;
+	}
+
+	/**
+	 * A quiescent process is taken out of the active ones before it is counted
+	 * as ready, so the next round doesn't pulse it.
+	 */
+	@Override
+	public void submitRound(Outbox outbox) throws RemoteException {
+		outbox.sendEach(this);
+		if (outbox.quiescent && sparseRounds) {
+			active.remove(outbox.sender);
+		}
+		sendMessage(outbox.readyMessage());
+	}
+
+	/**
+	 * Ready messages are counted without synchronization, only the last one
+	 * of the round taking the network's lock to start the next round. The
+	 * messages a process sends during the round are queued before its ready
+	 * message, so they are all in the queue by then.
+	 */
+	@Override
+	protected void processControlMessage(Message message) {
+		switch (message.kind) {
+		case Constants.KIND_WAKE_ROUND:
+			wake(message.sender);
+			return;
+		case Constants.KIND_READY_ROUND:
+			if (readyCount.incrementAndGet() == expectedReady) {
+				if (roundStart != 0) {
+					((SyncNetworkMetrics) metrics).readyWait.record(System
+							.nanoTime() - roundStart);
 				}
 
-				nextRound();
+				if (shard == null) {
+					roundReady();
+				} else {
+					shard.localReady();
+				}
 			}
 			return;
 		default:
@@ -84,20 +240,210 @@ public class SyncNetwork extends Network {
 		}
 	}
 
+	/**
+	 * Pulses a quiescent process again from the next round on, starting that
+	 * round if the network was idle.
+	 */
+	synchronized private void wake(int id) {
+		if (!sparseRounds || !processes.containsKey(id)) {
+			return;
+		}
+
+		active.add(id);
+		if (idle) {
+			idle = false;
+			roundReady();
+		}
+	}
+
+	/**
+	 * Every process is ready for the next round, which starts right away in
+	 * auto mode. With shards, only called on the coordinator, once every
+	 * shard is ready.
+	 */
+	synchronized protected void roundReady() {
+		ready = true;
+		if (autoMode >= 0) {
+			if (autoMode == 0) {
+				autoMode = -1;
+			}
+
+			startRound();
+		}
+	}
+
+	/**
+	 * Starts the next round, on every shard if the network is sharded.
+	 */
+	private void startRound() {
+		ready = false;
+		if (shard == null) {
+			nextRound();
+		} else {
+			shard.startRoundEverywhere();
+		}
+	}
+
+	/**
+	 * Messages sent by a shard in a round this network hasn't started yet are
+	 * held until it does, so that they are not delivered a round early.
+	 */
+	@Override
+	synchronized protected void acceptFromShard(long senderRound,
+			List<Message> messages) {
+		if (senderRound > round) {
+			heldBatches.add(new HeldBatch(senderRound, messages));
+		} else {
+			super.acceptFromShard(senderRound, messages);
+		}
+	}
+
+	/**
+	 * Records the start of a round and the messages it forwards.
+	 */
+	private static void traceRound(long round,
+			HashMap<Integer, List<Message>> batches) {
+		int count = 0;
+		for (List<Message> batch : batches.values()) {
+			count += batch.size();
+		}
+		Trace.record(Trace.ROUND, 0, 0, (int) round, count);
+
+		for (Entry<Integer, List<Message>> batch : batches.entrySet()) {
+			for (Message message : batch.getValue()) {
+				Trace.record(Trace.FORWARD, batch.getKey(), message.sender,
+						message.sequence, 0);
+			}
+		}
+	}
+
+	/**
+	 * Delivers all the messages of the round, each process receiving its own
+	 * ones followed by the pulse in a single batch. The pulse is the same
+	 * message for all of them, with recipient Constants.BROADCAST.
+	 * <p>
+	 * With sparse rounds, only the active processes and the recipients of the
+	 * messages are pulsed, the latter becoming active again.
+	 * <p>
+	 * Recipients are independent within a round, so batches are handed to the
+	 * delivery threads and the method returns without waiting for them. The
+	 * next round can only start once every process has signalled to be ready,
+	 * that is after all of them have handled their pulse and queued their
+	 * messages, which are left for the next round since the queue has already
+	 * been drained.
+	 */
 	synchronized protected void nextRound() {
-		readyCount = 0;
-		System.out.println("Starting a new round.");
-		synchronized (queue) {
-			forwardAllSequentially();
-			for (Entry<Integer, ProcessInterface> pair : processes.entrySet()) {
-				try {
-					pair.getValue().recieveMessage(
-							new Message(Constants.NETWORK, pair.getKey(),
-									new VectorClock(), Constants.PULSE_ROUND));
-				} catch (RemoteException e) {
-					throw new RuntimeException(e);
+		readyCount.set(0);
+		idle = false;
+		EventLog.info("Starting a new round.");
+
+		long now = System.nanoTime();
+		SyncNetworkMetrics roundMetrics = (SyncNetworkMetrics) metrics;
+		if (roundStart != 0) {
+			roundMetrics.roundDuration.record(now - roundStart);
+		}
+		roundMetrics.rounds.increment();
+		roundStart = now;
+
+		if (deliveryPool == null) {
+			deliveryPool = Executors.newFixedThreadPool(deliveryThreads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		round++;
+		HashMap<Integer, List<Message>> batches = drainQueueByRecipient();
+		if (Trace.isEnabled()) {
+			traceRound(round, batches);
+		}
+
+		if (!heldBatches.isEmpty()) {
+			ArrayList<HeldBatch> stillHeld = new ArrayList<>();
+			for (HeldBatch held : heldBatches) {
+				if (held.round > round) {
+					stillHeld.add(held);
+				} else {
+					super.acceptFromShard(held.round, held.messages);
+				}
+			}
+			heldBatches = stillHeld;
+		}
+
+		Collection<Integer> recipients;
+		if (sparseRounds) {
+			for (int recipient : batches.keySet()) {
+				if (processes.containsKey(recipient)) {
+					active.add(recipient);
 				}
 			}
+			recipients = new ArrayList<>(active);
+		} else {
+			recipients = processes.keySet();
+		}
+		expectedReady = recipients.size();
+		roundMetrics.pulses.add(recipients.size());
+
+		Message pulse = new Message(Constants.NETWORK, Constants.BROADCAST,
+				Constants.KIND_PULSE_ROUND, 0, 0);
+		pulse.body = Constants.PULSE_ROUND;
+		for (final int recipient : recipients) {
+			final ProcessInterface process = processes.get(recipient);
+			List<Message> messages = batches.remove(recipient);
+			if (messages == null) {
+				messages = Collections.singletonList(pulse);
+			} else {
+				messages.add(pulse);
+			}
+
+			/*
+			 * The pulse is counted neither as forwarded nor as failed.
+			 */
+			final List<Message> batch = messages;
+			deliveryPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long start = System.nanoTime();
+						process.recieveMessages(batch);
+						metrics.delivered(start, batch.size() - 1);
+					} catch (RemoteException e) {
+						metrics.remoteException.add(batch.size() - 1);
+						EventLog.error(
+								"Unable to send {} messages to {} RemoteException",
+								batch.size(), recipient);
+					}
+				}
+			});
+		}
+
+		for (List<Message> batch : batches.values()) {
+			metrics.missingRecipient.add(batch.size());
+			for (Message message : batch) {
+				EventLog.error("Unable to send message {} Missing recipient",
+						message);
+			}
+		}
+
+		if (recipients.isEmpty()) {
+			EventLog.info("No process to pulse, waiting for one to wake up.");
+			idle = true;
+			ready = true;
+		}
+	}
+
+	private static class HeldBatch {
+		final long round;
+		final List<Message> messages;
+
+		HeldBatch(long round, List<Message> messages) {
+			this.round = round;
+			this.messages = messages;
 		}
 	}
 }
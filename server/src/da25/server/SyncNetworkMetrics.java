@@ -0,0 +1,61 @@
+package da25.server;
+
+import da25.base.metrics.Histogram;
+import da25.base.metrics.StripedCounter;
+
+/**
+ * Counters of a network, plus the duration of its rounds. Round histograms
+ * are only updated by the thread starting the rounds, so a single stripe is
+ * enough.
+ */
+public class SyncNetworkMetrics extends NetworkMetrics implements
+		SyncNetworkMetricsMBean {
+	final StripedCounter rounds = new StripedCounter(1);
+	final StripedCounter pulses = new StripedCounter(1);
+	final Histogram roundDuration = new Histogram(1);
+	final Histogram readyWait = new Histogram(1);
+
+	SyncNetworkMetrics() {
+	}
+
+	@Override
+	public long getRounds() {
+		return rounds.get();
+	}
+
+	@Override
+	public double getMeanPulsedProcesses() {
+		long count = rounds.get();
+		return count == 0 ? 0 : (double) pulses.get() / count;
+	}
+
+	@Override
+	public double getRoundDurationMean() {
+		return roundDuration.getMean() / 1000;
+	}
+
+	@Override
+	public long getRoundDuration99thPercentile() {
+		return micros(roundDuration.getPercentile(0.99));
+	}
+
+	@Override
+	public long getRoundDurationMax() {
+		return micros(roundDuration.getMax());
+	}
+
+	@Override
+	public double getReadyWaitMean() {
+		return readyWait.getMean() / 1000;
+	}
+
+	@Override
+	public long getReadyWait99thPercentile() {
+		return micros(readyWait.getPercentile(0.99));
+	}
+
+	@Override
+	public long getReadyWaitMax() {
+		return micros(readyWait.getMax());
+	}
+}
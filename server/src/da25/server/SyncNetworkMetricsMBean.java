@@ -0,0 +1,35 @@
+package da25.server;
+
+/**
+ * Metrics of a synchronous network, exposed through JMX. Durations are in
+ * microseconds.
+ */
+public interface SyncNetworkMetricsMBean extends NetworkMetricsMBean {
+	public long getRounds();
+
+	/**
+	 * @return The mean number of processes pulsed by a round, smaller than the
+	 *         size of the network only with sparse rounds.
+	 */
+	public double getMeanPulsedProcesses();
+
+	/**
+	 * @return The mean time from the start of a round to the start of the
+	 *         next one.
+	 */
+	public double getRoundDurationMean();
+
+	public long getRoundDuration99thPercentile();
+
+	public long getRoundDurationMax();
+
+	/**
+	 * @return The mean time from the start of a round until every process has
+	 *         signalled to be ready.
+	 */
+	public double getReadyWaitMean();
+
+	public long getReadyWait99thPercentile();
+
+	public long getReadyWaitMax();
+}
@@ -0,0 +1,127 @@
+package da25.server;
+
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+import da25.base.Message;
+import da25.base.NetworkInterface;
+import da25.base.ProcessInterface;
+import da25.process.NioNetworkStub;
+import da25.process.Process;
+
+/**
+ * Compares the RMI and the NIO transports over the loopback interface.
+ * <p>
+ * A single process sends a number of messages to itself through a network
+ * forwarding every message as soon as it arrives, so each message crosses
+ * the transport twice. Usage: TransportBenchmark [messages]
+ */
+public class TransportBenchmark {
+	public static void main(String[] args) throws Exception {
+		int messagesCount = args.length > 0 ? Integer.parseInt(args[0])
+				: 20000;
+
+		for (String transport : new String[] { "RMI", "NIO" }) {
+			/*
+			 * The first run only warms up the VM.
+			 */
+			run(transport, messagesCount / 10);
+			long elapsed = run(transport, messagesCount);
+
+			System.out.println(transport + ": " + messagesCount
+					+ " messages in " + elapsed / 1000000 + " ms, "
+					+ messagesCount * 1000000000L / elapsed
+					+ " messages per second.");
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * @return The time needed to send and receive all the messages, in
+	 *         nanoseconds.
+	 */
+	private static long run(String transport, int messagesCount)
+			throws Exception {
+		Network network = new ForwardingNetwork();
+		CountingProcess process = new CountingProcess(messagesCount);
+
+		NetworkInterface networkStub;
+		ProcessInterface processStub;
+		if (transport.equals("RMI")) {
+			networkStub = (NetworkInterface) UnicastRemoteObject.exportObject(
+					network, 0);
+			processStub = (ProcessInterface) UnicastRemoteObject.exportObject(
+					process, 0);
+		} else {
+			NioNetworkServer server = new NioNetworkServer(network, 0);
+			server.start();
+			networkStub = new NioNetworkStub(new InetSocketAddress(
+					"localhost", server.getPort()));
+			processStub = process;
+		}
+
+		process.network = networkStub;
+		process.id = networkStub.register(processStub);
+		network.lock();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messagesCount; i++) {
+			networkStub.sendMessage(new Message(process.id, process.id, null,
+					"Message " + i));
+		}
+		process.awaitAll();
+		long elapsed = System.nanoTime() - start;
+
+		if (transport.equals("RMI")) {
+			UnicastRemoteObject.unexportObject(network, true);
+			UnicastRemoteObject.unexportObject(process, true);
+		}
+
+		return elapsed;
+	}
+
+	/**
+	 * A network forwarding every message right away, without queueing.
+	 */
+	private static class ForwardingNetwork extends Network {
+		ForwardingNetwork() {
+			super(CountingProcess.class);
+		}
+
+		@Override
+		public void sendMessage(Message message) throws RemoteException {
+			forwardMessage(message);
+		}
+	}
+
+	/**
+	 * A process counting the messages it receives.
+	 */
+	private static class CountingProcess extends Process {
+		private final int expected;
+		private int received = 0;
+
+		CountingProcess(int expected) {
+			this.expected = expected;
+		}
+
+		@Override
+		synchronized public void recieveMessage(Message message) {
+			if (++received == expected) {
+				notifyAll();
+			}
+		}
+
+		@Override
+		public void sendMessage(int recipient, String body) {
+		}
+
+		synchronized void awaitAll() throws InterruptedException {
+			while (received < expected) {
+				wait();
+			}
+		}
+	}
+}